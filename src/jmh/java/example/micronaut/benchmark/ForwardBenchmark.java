@@ -0,0 +1,80 @@
+package example.micronaut.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import example.micronaut.model.Config;
+import example.micronaut.model.KVBlockPool;
+import example.micronaut.model.Session;
+import example.micronaut.utils.TransformerUtils;
+
+// one decode step of the synthetic stories15M at position pos, attending over the pos
+// positions prefilled at setup: the cost per generated token as the context grows
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ForwardBenchmark {
+
+    @Param({"f32", "q8_0"})
+    public String type;
+
+    @Param({"0", "64", "255"})
+    public int pos;
+
+    SyntheticModel model;
+    KVBlockPool kv_pool;
+    Session session;
+    int token;
+
+    @Setup
+    public void setup() throws IOException {
+        model = new SyntheticModel(type);
+        Config config = model.transformer.config;
+        kv_pool = new KVBlockPool(config, 16, KVBlockPool.blocksFor(config.seq_len, 16));
+        session = new Session(0, config, kv_pool, 16, 0.0f, 0.9f, 0, 1);
+        Random rng = new Random(1);
+        int[] tokens = new int[pos];
+        for (int i = 0; i < pos; i++) {
+            tokens[i] = rng.nextInt(config.vocab_size);
+        }
+        if (pos > 0) {
+            TransformerUtils.prefill(model.transformer, session.prefill, session.state, tokens, pos, 0);
+        }
+        token = rng.nextInt(config.vocab_size);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        session.state.kv_cache.clear();
+        kv_pool.close();
+        model.close();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsPrepend = "-Dllama2.VectorAPI=false")
+    public float[] forward_scalar() {
+        return TransformerUtils.forward(model.transformer, session.state, token, pos);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsPrepend = "-Dllama2.VectorAPI=true")
+    public float[] forward_vector() {
+        return TransformerUtils.forward(model.transformer, session.state, token, pos);
+    }
+}
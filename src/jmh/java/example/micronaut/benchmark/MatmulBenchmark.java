@@ -0,0 +1,73 @@
+package example.micronaut.benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import example.micronaut.utils.TransformerUtils;
+
+// W (d,n) @ x (n,) in float32 for the matrix shapes of stories15M: wq/wo, w2, w1/w3 and the
+// classifier. USE_VECTOR_API is fixed when TransformerUtils loads, so the scalar and the
+// Vector API kernels run in forks of their own
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MatmulBenchmark {
+
+    @Param({"288x288", "288x768", "768x288", "32000x288"})
+    public String shape; // d x n
+
+    int d;
+    int n;
+    FloatBuffer w;
+    float[] x;
+    float[] xout;
+
+    @Setup
+    public void setup() {
+        String[] dims = shape.split("x");
+        d = Integer.parseInt(dims[0]);
+        n = Integer.parseInt(dims[1]);
+        // off-heap like the memory mapped checkpoint
+        w = ByteBuffer.allocateDirect(d * n * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        Random rng = new Random(1);
+        for (int i = 0; i < d * n; i++) {
+            w.put(i, (float) rng.nextGaussian());
+        }
+        x = new float[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = (float) rng.nextGaussian();
+        }
+        xout = new float[d];
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsPrepend = "-Dllama2.VectorAPI=false")
+    public float[] matmul_scalar() {
+        TransformerUtils.matmul(xout, x, w, n, d);
+        return xout;
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsPrepend = "-Dllama2.VectorAPI=true")
+    public float[] matmul_vector() {
+        TransformerUtils.matmul(xout, x, w, n, d);
+        return xout;
+    }
+}
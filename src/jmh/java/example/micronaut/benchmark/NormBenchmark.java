@@ -0,0 +1,64 @@
+package example.micronaut.benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import example.micronaut.utils.TransformerUtils;
+
+// rmsnorm over dim and hidden_dim sized vectors, softmax over attention scores up to
+// seq_len and over the vocabulary. softmax normalizes in place, which keeps the input a
+// valid distribution from one call to the next
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NormBenchmark {
+
+    @Param({"256", "288", "768", "32000"})
+    public int size;
+
+    FloatBuffer weight;
+    float[] x;
+    float[] o;
+
+    @Setup
+    public void setup() {
+        weight = ByteBuffer.allocateDirect(size * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        Random rng = new Random(1);
+        x = new float[size];
+        for (int i = 0; i < size; i++) {
+            weight.put(i, 1.0f + 0.1f * (float) rng.nextGaussian());
+            x[i] = (float) rng.nextGaussian();
+        }
+        o = new float[size];
+    }
+
+    @Benchmark
+    public float[] rmsnorm() {
+        TransformerUtils.rmsnorm(o, x, weight, size);
+        return o;
+    }
+
+    @Benchmark
+    public float[] softmax() {
+        TransformerUtils.softmax(x, 0, size);
+        return x;
+    }
+}
@@ -0,0 +1,69 @@
+package example.micronaut.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import example.micronaut.model.Sampler;
+import example.micronaut.utils.SamplingUtils;
+
+// sampling the next token out of 32000 logits with each strategy of the sampler. sample()
+// overwrites the logits with probabilities, so every call starts from a fresh copy, which
+// is included in the time (about as long as one sweep over the logits)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SamplerBenchmark {
+
+    @Param({"greedy", "multinomial", "topp", "topk"})
+    public String strategy;
+
+    Sampler sampler;
+    float[] logits;
+    float[] work;
+
+    @Setup
+    public void setup() {
+        int vocab_size = 32000;
+        sampler = switch (strategy) {
+            case "greedy" -> new Sampler(vocab_size, 0.0f, 0.9f, 0, 1);
+            case "multinomial" -> new Sampler(vocab_size, 1.0f, 1.0f, 0, 1);
+            case "topp" -> new Sampler(vocab_size, 1.0f, 0.9f, 0, 1);
+            case "topk" -> new Sampler(vocab_size, 1.0f, 0.9f, 40, 1);
+            default -> throw new IllegalArgumentException("unknown strategy " + strategy);
+        };
+        Random rng = new Random(1);
+        logits = new float[vocab_size];
+        for (int i = 0; i < vocab_size; i++) {
+            logits[i] = 3.0f * (float) rng.nextGaussian();
+        }
+        work = new float[vocab_size];
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsPrepend = "-Dllama2.VectorAPI=false")
+    public int sample_scalar() {
+        System.arraycopy(logits, 0, work, 0, logits.length);
+        return SamplingUtils.sample(sampler, work);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsPrepend = "-Dllama2.VectorAPI=true")
+    public int sample_vector() {
+        System.arraycopy(logits, 0, work, 0, logits.length);
+        return SamplingUtils.sample(sampler, work);
+    }
+}
@@ -0,0 +1,50 @@
+package example.micronaut.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import example.micronaut.model.Tokenizer;
+import example.micronaut.model.Transformer;
+import example.micronaut.tools.CheckpointConverter;
+import example.micronaut.tools.SyntheticCheckpoint;
+
+// ----------------------------------------------------------------------------
+// a checkpoint of random weights in the shape of stories15M and its tokenizer, written to a
+// temporary directory at benchmark setup, so the benchmarks need no downloaded model. the
+// weights are converted to type (f32, q8_0, q4_0, f16 or bf16) with CheckpointConverter
+final class SyntheticModel implements AutoCloseable {
+
+    final Path dir;
+    final Transformer transformer;
+    final Tokenizer tokenizer;
+
+    SyntheticModel(String type) throws IOException {
+        this.dir = Files.createTempDirectory("llama2-jmh");
+        int[] shape = SyntheticCheckpoint.STORIES15M;
+        String checkpoint = dir.resolve("synthetic.bin").toString();
+        String tokenizer = dir.resolve("tokenizer.bin").toString();
+        SyntheticCheckpoint.writeCheckpoint(checkpoint, shape[0], shape[1], shape[2], shape[3], shape[4], shape[5],
+                shape[6], true, 1);
+        SyntheticCheckpoint.writeTokenizer(tokenizer, shape[5], 1);
+        if (!type.equals("f32")) {
+            String converted = dir.resolve("synthetic_" + type + ".bin").toString();
+            CheckpointConverter.main(new String[]{checkpoint, converted, type, "32"});
+            checkpoint = converted;
+        }
+        this.transformer = new Transformer(checkpoint);
+        this.tokenizer = new Tokenizer(tokenizer, transformer.config.vocab_size);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // the checkpoint stays mapped until the Transformer is collected, unlinking it is fine
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+}
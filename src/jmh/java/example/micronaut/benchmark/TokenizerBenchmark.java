@@ -0,0 +1,57 @@
+package example.micronaut.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import example.micronaut.tools.SyntheticCheckpoint;
+import example.micronaut.utils.TokenUtils;
+
+// BPE encoding of a one line prompt and of a long one (the text the synthetic tokenizer
+// learned its merges from, four times over) with a 32000 token vocabulary
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenizerBenchmark {
+
+    @Param({"short", "long"})
+    public String prompt;
+
+    SyntheticModel model;
+    String text;
+    int[] tokens;
+
+    @Setup
+    public void setup() throws IOException {
+        model = new SyntheticModel("f32");
+        text = prompt.equals("short")
+                ? "Once upon a time, there was a little girl named Lily."
+                : SyntheticCheckpoint.TEXT.repeat(4);
+        tokens = new int[text.length() + 3];
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        model.close();
+    }
+
+    @Benchmark
+    public int encode() {
+        return TokenUtils.encode(model.tokenizer, text, true, false, tokens);
+    }
+}
@@ -1,28 +1,22 @@
 package example.micronaut;
 
-import io.micronaut.context.ApplicationContext;
+import example.micronaut.utils.ComputePool;
+import io.micronaut.context.annotation.Context;
 import io.micronaut.context.annotation.Value;
 import io.micronaut.runtime.Micronaut;
-import jakarta.inject.Singleton;
 
-@Singleton
+@Context
 public class Application {
 
-    private final String parallelism;
-
-    public Application(@Value("${java.util.concurrent.ForkJoinPool.common.parallelism:8}") String parallelism) {
-        this.parallelism = parallelism;
-    }
-
-    public void run(String[] args) {
-        // Programmatically set the parallelism property
-        System.setProperty("java.util.concurrent.ForkJoinPool.common.parallelism", parallelism);
-        System.out.println("ForkJoinPool parallelism set to: " + System.getProperty("java.util.concurrent.ForkJoinPool.common.parallelism"));
+    public Application(@Value("${transformer.compute.threads:0}") int computeThreads,
+                       @Value("${transformer.compute.l2_bytes:262144}") long l2Bytes) {
+        // Size the compute pool used by the matmul and attention kernels. A @Context bean is
+        // created with the context, before any request can start the pool on its defaults
+        ComputePool.configure(computeThreads, l2Bytes);
+        System.out.println("Compute pool threads set to: " + ComputePool.instance().threads);
     }
 
     public static void main(String[] args) {
-        ApplicationContext context = Micronaut.run(Application.class, args);
-        Application app = context.getBean(Application.class);
-        app.run(args);
+        Micronaut.run(Application.class, args);
     }
-}
\ No newline at end of file
+}
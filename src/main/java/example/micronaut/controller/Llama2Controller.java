@@ -1,15 +1,30 @@
 package example.micronaut.controller;
 
 import java.io.IOException;
+import java.util.List;
 
-import example.micronaut.model.Sampler;
+import example.micronaut.model.KVBlockPool;
 import example.micronaut.model.Tokenizer;
 import example.micronaut.model.Transformer;
+import example.micronaut.service.BatchScheduler;
+import example.micronaut.service.ChatSessions;
+import example.micronaut.service.DraftModel;
+import example.micronaut.service.Drafter;
+import example.micronaut.service.InferenceMetrics;
+import example.micronaut.service.Limits;
 import example.micronaut.service.Llama2Service;
+import example.micronaut.service.PromptLookup;
+import example.micronaut.service.PrefixCache;
+import example.micronaut.service.SessionPool;
+import example.micronaut.service.SpeculativeDecoder;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.micronaut.context.annotation.Value;
+import io.micronaut.core.annotation.Nullable;
+import io.micronaut.http.HttpStatus;
 import io.micronaut.http.MediaType;
 import io.micronaut.http.annotation.*;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import reactor.core.publisher.Flux;
 
@@ -18,16 +33,59 @@ import reactor.core.publisher.Flux;
 public class Llama2Controller {
 
     private final Llama2Service llama2Service;
+    private final MeterRegistry meterRegistry;
     private int steps = 256; // max number of steps to run for, 0: use seq_len
 
     private Transformer transformer;
     private Tokenizer tokenizer;
-    private Sampler sampler;
+    private KVBlockPool kvBlockPool;
+    private SessionPool sessionPool;
+    private BatchScheduler batchScheduler; // null when continuous batching is disabled
+    private PrefixCache prefixCache; // null when prefix caching is disabled
+    private ChatSessions chatSessions; // conversations kept between chat requests
+    private Transformer draft; // null when speculative decoding is disabled
+    private KVBlockPool draftKVBlockPool;
+    private SpeculativeDecoder speculativeDecoder; // null when speculative decoding is disabled
+    private InferenceMetrics inferenceMetrics;
 
     @Value("${transformer.checkpoint_path}")
     private String checkpoint_path;
     @Value("${transformer.tokenizer_path}")
     private String tokenizer_path;
+    @Value("${transformer.session_pool_size:4}")
+    private int session_pool_size; // max number of requests served concurrently
+    @Value("${transformer.request.timeout_millis:120000}")
+    private long request_timeout_millis; // deadline of a request, queueing included. 0 = none
+    @Value("${transformer.prefill.chunk_size:64}")
+    private int prefill_chunk_size; // prompt tokens processed per batched forward pass
+    @Value("${transformer.sampling.topk:0}")
+    private int topk; // sample from the k most likely tokens only, then apply top-p. 0 = off
+    @Value("${transformer.kv_cache.block_size:16}")
+    private int kv_block_size; // positions per kv cache block
+    @Value("${transformer.kv_cache.max_blocks:0}")
+    private int kv_max_blocks; // kv cache budget in blocks, 0: every session at seq_len in float32
+    @Value("${transformer.kv_cache.int8:false}")
+    private boolean kv_int8; // int8 keys and values, about 4x smaller blocks
+    @Value("${transformer.prefix_cache.enabled:true}")
+    private boolean prefix_cache_enabled; // reuse the kv cache of shared prompt prefixes
+    @Value("${transformer.prefix_cache.max_blocks:0}")
+    private int prefix_cache_max_blocks; // kv blocks kept for prefixes, 0: half the kv cache
+    @Value("${transformer.chat.max_blocks:0}")
+    private int chat_max_blocks; // kv blocks kept for idle conversations, 0: half the kv cache
+    @Value("${transformer.batching.enabled:true}")
+    private boolean batching_enabled; // fuse the decode steps of concurrent sessions
+    @Value("${transformer.batching.max_wait_micros:500}")
+    private long batching_max_wait_micros; // how long an iteration waits for late sessions
+    @Value("${transformer.speculative.enabled:false}")
+    private boolean speculative_enabled; // guess tokens ahead, verify them in one pass
+    @Value("${transformer.speculative.mode:draft}")
+    private String speculative_mode; // draft: guess with a draft model, prompt_lookup: from n-grams
+    @Value("${transformer.speculative.draft_checkpoint_path:}")
+    private String draft_checkpoint_path; // smaller model with the same vocabulary, e.g. stories15M.bin
+    @Value("${transformer.speculative.k:4}")
+    private int speculative_k; // tokens guessed per step
+    @Value("${transformer.speculative.ngram:3}")
+    private int speculative_ngram; // longest n-gram matched by prompt lookup
 
     @PostConstruct
     public void init() throws IOException {
@@ -46,6 +104,9 @@ public class Llama2Controller {
         if (topp < 0.0 || 1.0 < topp) {
             topp = 0.9f;
         }
+        if (topk < 0) {
+            topk = 0;
+        }
         if (steps <= 0) {
             steps = 0;
         }
@@ -59,18 +120,105 @@ public class Llama2Controller {
         // build the Tokenizer via the tokenizer .bin file
         tokenizer = new Tokenizer(tokenizer_path, transformer.config.vocab_size);
 
-        // build the Sampler
-        sampler = new Sampler(transformer.config.vocab_size, temperature, topp, rng_seed);
+        // build the off-heap kv cache shared by the sessions, filled block by block
+        if (kv_max_blocks <= 0) {
+            // the memory of a float32 cache for every session, which fits more int8 blocks
+            long bytes = session_pool_size * KVBlockPool.blocksFor(transformer.config.seq_len, kv_block_size)
+                    * KVBlockPool.blockBytes(transformer.config, kv_block_size, false);
+            kv_max_blocks = (int) (bytes / KVBlockPool.blockBytes(transformer.config, kv_block_size, kv_int8));
+        }
+        kvBlockPool = new KVBlockPool(transformer.config, kv_block_size, kv_max_blocks, kv_int8);
+
+        // build the cache of prompt prefixes, its blocks are evicted when sessions need them
+        if (prefix_cache_enabled) {
+            if (prefix_cache_max_blocks <= 0) {
+                prefix_cache_max_blocks = Math.max(1, kv_max_blocks / 2);
+            }
+            prefixCache = new PrefixCache(kvBlockPool, prefix_cache_max_blocks);
+        }
+
+        // build the store of chat conversations, the least recently used are evicted
+        // beyond chat_max_blocks or when sessions need the memory
+        if (chat_max_blocks <= 0) {
+            chat_max_blocks = Math.max(1, kv_max_blocks / 2);
+        }
+        chatSessions = new ChatSessions(kvBlockPool, chat_max_blocks);
+
+        // build the pool of per-request RunState + Sampler sessions sharing the weights
+        sessionPool = new SessionPool(transformer.config, kvBlockPool, session_pool_size, prefill_chunk_size,
+                temperature, topp, topk, rng_seed);
+
+        // build the continuous batching scheduler, one batch row per session at most
+        if (batching_enabled) {
+            batchScheduler = new BatchScheduler(transformer, session_pool_size, batching_max_wait_micros);
+        }
+
+        // build the drafter for speculative decoding: a draft model with a kv cache of its
+        // own, or lookups of the n-grams of the sequence
+        if (speculative_enabled) {
+            Drafter drafter;
+            if ("prompt_lookup".equalsIgnoreCase(speculative_mode)) {
+                drafter = new PromptLookup(speculative_ngram);
+            } else if ("draft".equalsIgnoreCase(speculative_mode)) {
+                if (draft_checkpoint_path.isEmpty()) {
+                    throw new IllegalArgumentException(
+                            "speculative decoding needs transformer.speculative.draft_checkpoint_path");
+                }
+                draft = new Transformer(draft_checkpoint_path);
+                if (draft.config.vocab_size != transformer.config.vocab_size) {
+                    throw new IllegalArgumentException("the draft model has a vocabulary of "
+                            + draft.config.vocab_size + " tokens, the target model of "
+                            + transformer.config.vocab_size);
+                }
+                draftKVBlockPool = new KVBlockPool(draft.config, kv_block_size,
+                        session_pool_size * KVBlockPool.blocksFor(draft.config.seq_len, kv_block_size), kv_int8);
+                drafter = new DraftModel(draft, draftKVBlockPool, prefill_chunk_size);
+            } else {
+                throw new IllegalArgumentException(
+                        "transformer.speculative.mode must be draft or prompt_lookup, got " + speculative_mode);
+            }
+            speculativeDecoder = new SpeculativeDecoder(transformer, drafter, speculative_k);
+        }
+
+        // register the latency, throughput and load meters of the inference
+        inferenceMetrics = new InferenceMetrics(meterRegistry);
+        inferenceMetrics.gauges(sessionPool, kvBlockPool, prefixCache, chatSessions);
+    }
+
+    @PreDestroy
+    public void close() {
+        if (batchScheduler != null) {
+            batchScheduler.close();
+        }
+        if (kvBlockPool != null) {
+            kvBlockPool.close();
+        }
+        if (draftKVBlockPool != null) {
+            draftKVBlockPool.close();
+        }
     }
 
     @Get(value = "/generate", produces = MediaType.TEXT_EVENT_STREAM)
-    public Flux<String> generate(@QueryValue(defaultValue = "Once upon a time") String prompt) {
-        return llama2Service.generate(transformer, tokenizer, sampler, prompt, steps);
+    public Flux<String> generate(@QueryValue(defaultValue = "Once upon a time") String prompt,
+            @QueryValue(defaultValue = "0") int max_tokens, @Nullable @QueryValue List<String> stop) {
+        return llama2Service.generate(transformer, tokenizer, sessionPool, batchScheduler, prefixCache,
+                speculativeDecoder, inferenceMetrics, prompt, steps,
+                new Limits(max_tokens, stop, request_timeout_millis));
     }
 
     @Get(value = "/chat", produces = MediaType.TEXT_EVENT_STREAM)
     public Flux<Object> chat(@QueryValue(defaultValue = "Once upon a time") String prompt,
-            @QueryValue(defaultValue = "You are a helpful assistant.") String system_prompt) {
-        return llama2Service.chat(transformer, tokenizer, sampler, prompt, system_prompt, steps);
+            @QueryValue(defaultValue = "You are a helpful assistant.") String system_prompt,
+            @Nullable @QueryValue String session_id, @QueryValue(defaultValue = "0") int max_tokens,
+            @Nullable @QueryValue List<String> stop) {
+        return llama2Service.chat(transformer, tokenizer, sessionPool, batchScheduler, prefixCache, chatSessions,
+                inferenceMetrics, session_id, prompt, system_prompt, steps,
+                new Limits(max_tokens, stop, request_timeout_millis));
+    }
+
+    @Delete("/chat/{session_id}")
+    public HttpStatus endChat(String session_id) {
+        // drop a conversation and its kv cache, instead of waiting for its eviction
+        return chatSessions.remove(session_id) ? HttpStatus.NO_CONTENT : HttpStatus.NOT_FOUND;
     }
 }
@@ -0,0 +1,31 @@
+package example.micronaut.model;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+import lombok.Getter;
+
+@Getter
+public final class BF16Tensor implements Tensor {
+
+    public static final ValueLayout.OfShort HALF = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    public final MemorySegment data; // bfloat16 values, row major
+
+    public BF16Tensor(MemorySegment data) {
+        this.data = data;
+    }
+
+    public float get(long index) {
+        // a bfloat16 is the upper 16 bits of the float32 with the same value
+        return Float.intBitsToFloat((data.getAtIndex(HALF, index) & 0xFFFF) << 16);
+    }
+
+    @Override
+    public void copyTo(int offset, float[] dst, int dstOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[dstOffset + i] = get(offset + i);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package example.micronaut.model;
+
+import lombok.Getter;
+
+@Getter
+public class BatchState {
+
+    public final int max_batch; // max number of rows processed together
+
+    // one wave of activations per row of the batch, same shapes as in RunState
+    public final float[][] x; // (max_batch, dim)
+    public final float[][] xb; // (max_batch, dim)
+    public final float[][] xb2; // (max_batch, dim)
+    public final float[][] hb; // (max_batch, hidden_dim)
+    public final float[][] hb2; // (max_batch, hidden_dim)
+    public final float[][] q; // (max_batch, dim)
+    public final float[][] k; // (max_batch, kv_dim)
+    public final float[][] v; // (max_batch, kv_dim)
+    public final float[][] att; // (max_batch, n_heads * seq_len)
+    public final float[][] logits; // row views into the logits of the RunStates in the batch
+    public final byte[][] xq; // scratch: matmul inputs quantized for int8 weights (max_batch, max(dim, hidden_dim))
+    public final float[][] xs; // scratch: scales of xq (max_batch, max(dim, hidden_dim))
+
+    public BatchState(Config config, int max_batch) {
+        int kv_dim = (config.dim * config.n_kv_heads) / config.n_heads;
+        this.max_batch = max_batch;
+        this.x = new float[max_batch][config.dim];
+        this.xb = new float[max_batch][config.dim];
+        this.xb2 = new float[max_batch][config.dim];
+        this.hb = new float[max_batch][config.hidden_dim];
+        this.hb2 = new float[max_batch][config.hidden_dim];
+        this.q = new float[max_batch][config.dim];
+        this.k = new float[max_batch][kv_dim];
+        this.v = new float[max_batch][kv_dim];
+        this.att = new float[max_batch][config.n_heads * config.seq_len];
+        this.logits = new float[max_batch][];
+        this.xq = new byte[max_batch][Math.max(config.dim, config.hidden_dim)];
+        this.xs = new float[max_batch][Math.max(config.dim, config.hidden_dim)];
+    }
+}
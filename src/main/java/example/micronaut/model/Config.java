@@ -16,6 +16,15 @@ public class Config {
     public final int seq_len; // max sequence length
     public final boolean shared_weights;
     public final int head_size;
+    // RoPE rotations of every position, computed once instead of for every layer of every
+    // token (the checkpoints' own freq_cis tables are skipped by Weights). laid out like
+    // the pairs of a head, (seq_len, head_size): the cosine twice per pair, and the sine
+    // negated for the first element of a pair, so a head rotates as
+    // q * rope_cos + pair_swapped(q) * rope_sin
+    @ToString.Exclude
+    public final float[] rope_cos;
+    @ToString.Exclude
+    public final float[] rope_sin;
 
     Config(ByteBuffer buffer) {
         this.dim = buffer.getInt();
@@ -28,5 +37,39 @@ public class Config {
         this.seq_len = buffer.getInt();
         this.shared_weights = vocab_size > 0;
         this.head_size = dim / n_heads;
+        this.rope_cos = new float[seq_len * head_size];
+        this.rope_sin = new float[seq_len * head_size];
+        ropeTables();
+    }
+
+    // versioned checkpoints store a positive vocab_size and a separate shared classifier flag
+    Config(ByteBuffer buffer, boolean shared_weights) {
+        this.dim = buffer.getInt();
+        this.hidden_dim = buffer.getInt();
+        this.n_layers = buffer.getInt();
+        this.n_heads = buffer.getInt();
+        this.n_kv_heads = buffer.getInt();
+        this.vocab_size = buffer.getInt();
+        this.seq_len = buffer.getInt();
+        this.shared_weights = shared_weights;
+        this.head_size = dim / n_heads;
+        this.rope_cos = new float[seq_len * head_size];
+        this.rope_sin = new float[seq_len * head_size];
+        ropeTables();
+    }
+
+    private void ropeTables() {
+        for (int i = 0; i < head_size; i += 2) {
+            float freq = (float) (1.0 / Math.pow(10000.0f, i / (float) head_size));
+            for (int pos = 0; pos < seq_len; pos++) {
+                float val = pos * freq;
+                float fcr = (float) Math.cos(val);
+                float fci = (float) Math.sin(val);
+                rope_cos[pos * head_size + i] = fcr;
+                rope_cos[pos * head_size + i + 1] = fcr;
+                rope_sin[pos * head_size + i] = -fci;
+                rope_sin[pos * head_size + i + 1] = fci;
+            }
+        }
     }
 }
@@ -0,0 +1,67 @@
+package example.micronaut.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// ----------------------------------------------------------------------------
+// turns a stream of tokens back into text. raw byte tokens ('<0xE2>', '<0x82>', ...)
+// can split a multi-byte utf-8 character over several tokens, so their bytes are held
+// back until the character is complete. a token that is whole characters on its own,
+// the common case, returns its precomputed piece without any allocation
+public class Detokenizer {
+
+    private final Tokenizer tokenizer;
+    private byte[] pending = new byte[8]; // bytes of the last, incomplete, character
+    private int n_pending;
+
+    public Detokenizer(Tokenizer tokenizer) {
+        this.tokenizer = tokenizer;
+    }
+
+    public String next(int prev_token, int token) {
+        // the text completed by token, possibly empty
+        byte[] bytes = tokenizer.vocab_bytes[token];
+        // following BOS (1) token, sentencepiece decoder strips any leading whitespace
+        // (see PR #89)
+        int from = prev_token == 1 && bytes.length > 0 && bytes[0] == ' ' ? 1 : 0;
+        if (n_pending == 0 && complete(bytes, from, bytes.length) == bytes.length) {
+            String piece = tokenizer.vocab_pieces[token];
+            return from == 0 ? piece : piece.substring(1);
+        }
+        if (n_pending + bytes.length - from > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(2 * pending.length, n_pending + bytes.length));
+        }
+        System.arraycopy(bytes, from, pending, n_pending, bytes.length - from);
+        n_pending += bytes.length - from;
+        int end = complete(pending, 0, n_pending);
+        if (end == 0) {
+            return "";
+        }
+        String text = new String(pending, 0, end, StandardCharsets.UTF_8);
+        System.arraycopy(pending, end, pending, 0, n_pending - end);
+        n_pending -= end;
+        return text;
+    }
+
+    public String flush() {
+        // whatever is left at the end of the stream, an incomplete character becomes U+FFFD
+        String text = new String(pending, 0, n_pending, StandardCharsets.UTF_8);
+        n_pending = 0;
+        return text;
+    }
+
+    static int complete(byte[] bytes, int from, int to) {
+        // end of the last complete utf-8 character in bytes[from..to). invalid bytes count
+        // as complete, the decoder replaces them
+        int i = to - 1;
+        while (i >= from && i > to - 4 && (bytes[i] & 0xC0) == 0x80) {
+            i--; // continuation bytes
+        }
+        if (i < from) {
+            return to;
+        }
+        int lead = bytes[i] & 0xFF;
+        int length = (lead & 0xE0) == 0xC0 ? 2 : (lead & 0xF0) == 0xE0 ? 3 : (lead & 0xF8) == 0xF0 ? 4 : 1;
+        return to - i >= length ? to : i;
+    }
+}
@@ -0,0 +1,30 @@
+package example.micronaut.model;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+import lombok.Getter;
+
+@Getter
+public final class F16Tensor implements Tensor {
+
+    public static final ValueLayout.OfShort HALF = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    public final MemorySegment data; // float16 values, row major
+
+    public F16Tensor(MemorySegment data) {
+        this.data = data;
+    }
+
+    public float get(long index) {
+        return Float.float16ToFloat(data.getAtIndex(HALF, index));
+    }
+
+    @Override
+    public void copyTo(int offset, float[] dst, int dstOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[dstOffset + i] = get(offset + i);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package example.micronaut.model;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.FloatBuffer;
+
+import lombok.Getter;
+
+@Getter
+public final class F32Tensor implements Tensor {
+
+    public final FloatBuffer buffer; // float32 values, row major
+    public final MemorySegment segment; // same memory, for the Vector API
+
+    public F32Tensor(FloatBuffer buffer) {
+        this.buffer = buffer;
+        this.segment = MemorySegment.ofBuffer(buffer);
+    }
+
+    @Override
+    public void copyTo(int offset, float[] dst, int dstOffset, int length) {
+        buffer.get(offset, dst, dstOffset, length);
+    }
+}
@@ -0,0 +1,153 @@
+package example.micronaut.model;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.function.BooleanSupplier;
+
+// ----------------------------------------------------------------------------
+// off-heap memory of the kv caches, shared by all sessions. the memory is split in
+// fixed size blocks, each holding the keys and values of block_size consecutive
+// positions for every layer: keys (layer, block_size, kv_dim) then values (layer,
+// block_size, kv_dim). blocks are created lazily up to max_blocks, reference counted
+// and recycled through a free list, so sessions only hold memory for the positions
+// they have actually filled.
+// with int8 the keys and values are stored as int8 with one float32 scale per kv head
+// and position, after them: key scales (layer, block_size, n_kv_heads) then value
+// scales (layer, block_size, n_kv_heads). that is about 4x less memory per block
+public class KVBlockPool implements AutoCloseable {
+
+    public final int block_size; // positions per block
+    public final int n_layers;
+    public final int kv_dim;
+    public final int n_kv_heads;
+    public final int head_size;
+    public final int max_blocks;
+    public final boolean int8; // int8 keys and values with per head and position scales
+    public final long block_bytes;
+
+    private final Arena arena = Arena.ofShared();
+    private final MemorySegment[] blocks; // created blocks, by id
+    private final int[] refs; // references to each block, 0 when free
+    private final int[] free; // stack of the ids of the free created blocks
+    private int n_free;
+    private int n_created;
+    // frees some block held by caches of blocks (e.g. the prefix cache) when the pool is full
+    private volatile BooleanSupplier reclaimer = () -> false;
+
+    public KVBlockPool(Config config, int block_size, int max_blocks) {
+        this(config, block_size, max_blocks, false);
+    }
+
+    public KVBlockPool(Config config, int block_size, int max_blocks, boolean int8) {
+        if (block_size < 1) {
+            throw new IllegalArgumentException("kv cache block size must be at least 1, got " + block_size);
+        }
+        if (max_blocks < 1) {
+            throw new IllegalArgumentException("kv cache must have at least 1 block, got " + max_blocks);
+        }
+        this.block_size = block_size;
+        this.n_layers = config.n_layers;
+        this.kv_dim = (config.dim * config.n_kv_heads) / config.n_heads;
+        this.n_kv_heads = config.n_kv_heads;
+        this.head_size = config.head_size;
+        this.max_blocks = max_blocks;
+        this.int8 = int8;
+        this.block_bytes = blockBytes(config, block_size, int8);
+        this.blocks = new MemorySegment[max_blocks];
+        this.refs = new int[max_blocks];
+        this.free = new int[max_blocks];
+    }
+
+    public static int blocksFor(int positions, int block_size) {
+        return (positions + block_size - 1) / block_size;
+    }
+
+    public static long blockBytes(Config config, int block_size, boolean int8) {
+        long values = 2L * config.n_layers * block_size * ((config.dim * config.n_kv_heads) / config.n_heads);
+        if (!int8) {
+            return values * Float.BYTES;
+        }
+        return values + 2L * config.n_layers * block_size * config.n_kv_heads * Float.BYTES;
+    }
+
+    public synchronized void addReclaimer(BooleanSupplier reclaimer) {
+        // reclaimers are asked in the order they were added, until one frees a block
+        BooleanSupplier first = this.reclaimer;
+        this.reclaimer = () -> first.getAsBoolean() || reclaimer.getAsBoolean();
+    }
+
+    public int allocate() {
+        // a free block with one reference, throws when the memory budget is used up.
+        // the reclaimer runs without holding the pool lock, as it calls back into release
+        while (true) {
+            synchronized (this) {
+                int id = -1;
+                if (n_free > 0) {
+                    id = free[--n_free];
+                } else if (n_created < max_blocks) {
+                    id = n_created++;
+                    blocks[id] = arena.allocate(block_bytes, 64);
+                }
+                if (id >= 0) {
+                    refs[id] = 1;
+                    return id;
+                }
+            }
+            if (!reclaimer.getAsBoolean()) {
+                throw new IllegalStateException("kv cache is full, all " + max_blocks + " blocks of " + block_size
+                        + " positions are in use");
+            }
+        }
+    }
+
+    public synchronized void retain(int id) {
+        refs[id]++;
+    }
+
+    public synchronized void release(int id) {
+        if (--refs[id] == 0) {
+            free[n_free++] = id;
+        }
+    }
+
+    public synchronized int refs(int id) {
+        return refs[id];
+    }
+
+    public synchronized MemorySegment segment(int id) {
+        return blocks[id];
+    }
+
+    public long keyIndex(int layer, int slot) {
+        // index of the key of position slot of a block, in floats (or bytes with int8)
+        return ((long) layer * block_size + slot) * kv_dim;
+    }
+
+    public long valueIndex(int layer, int slot) {
+        // index of the value of position slot of a block, in floats (or bytes with int8)
+        return ((long) (n_layers + layer) * block_size + slot) * kv_dim;
+    }
+
+    public long keyScaleIndex(int layer, int slot) {
+        // float index of the int8 key scales of position slot of a block, one per kv head
+        return 2L * n_layers * block_size * kv_dim / Float.BYTES + ((long) layer * block_size + slot) * n_kv_heads;
+    }
+
+    public long valueScaleIndex(int layer, int slot) {
+        // float index of the int8 value scales of position slot of a block, one per kv head
+        return keyScaleIndex(n_layers + layer, slot);
+    }
+
+    public synchronized int used_blocks() {
+        return n_created - n_free;
+    }
+
+    public synchronized int created_blocks() {
+        return n_created;
+    }
+
+    @Override
+    public void close() {
+        arena.close();
+    }
+}
@@ -0,0 +1,74 @@
+package example.micronaut.model;
+
+import java.util.Arrays;
+
+import lombok.Getter;
+
+// ----------------------------------------------------------------------------
+// index of the n-grams of a growing token sequence, for n = 1..max_n: hash chains as
+// in LZ77 compressors. heads holds the latest position following an n-gram of each
+// hash bucket and prev links every position to the previous one of its bucket, so the
+// most recent occurrences are found first. collisions are ruled out by comparing tokens
+@Getter
+public class NGramIndex {
+
+    private static final int MAX_CHAIN = 64; // positions compared per lookup at most
+
+    public final int max_n; // longest n-gram indexed
+    private final int[][] heads; // (max_n, buckets) latest position in the bucket, -1: none
+    private final int[][] prev; // (max_n, capacity) previous position in the same bucket
+    private final int mask;
+    private int indexed = 1; // positions below this are in the chains
+
+    public NGramIndex(int capacity, int max_n) {
+        int buckets = Integer.highestOneBit(Math.max(1, capacity - 1)) << 2;
+        this.max_n = max_n;
+        this.mask = buckets - 1;
+        this.heads = new int[max_n][buckets];
+        this.prev = new int[max_n][capacity];
+        clear();
+    }
+
+    public void update(int[] tokens, int n) {
+        // index the positions 1..n-1 not seen yet, each following the n-grams ending at it
+        for (int i = indexed; i < n; i++) {
+            for (int size = 1; size <= Math.min(max_n, i); size++) {
+                int b = hash(tokens, i - size, size) & mask;
+                prev[size - 1][i] = heads[size - 1][b];
+                heads[size - 1][b] = i;
+            }
+        }
+        indexed = Math.max(indexed, n);
+    }
+
+    public int find(int[] tokens, int n, int size) {
+        // the latest position i < n that follows the same size tokens as tokens[0..n)
+        // ends with, or -1. tokens[i..n) continued them last time
+        if (size > n - 1) {
+            return -1;
+        }
+        int[] chain = prev[size - 1];
+        int i = heads[size - 1][hash(tokens, n - size, size) & mask];
+        for (int steps = 0; i >= 0 && steps < MAX_CHAIN; i = chain[i], steps++) {
+            if (Arrays.equals(tokens, i - size, i, tokens, n - size, n)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public void clear() {
+        for (int[] head : heads) {
+            Arrays.fill(head, -1);
+        }
+        indexed = 1;
+    }
+
+    static int hash(int[] tokens, int from, int size) {
+        int h = 0;
+        for (int i = from; i < from + size; i++) {
+            h = (h + tokens[i]) * 0x9E3779B1;
+        }
+        return h ^ (h >>> 16);
+    }
+}
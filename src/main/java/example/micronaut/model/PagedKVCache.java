@@ -0,0 +1,111 @@
+package example.micronaut.model;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+
+// ----------------------------------------------------------------------------
+// kv cache of one session: a block table mapping the logical blocks of positions
+// 0, block_size, 2 * block_size, ... to blocks of the shared pool. blocks are taken
+// from the pool the first time a position in them is stored
+public class PagedKVCache {
+
+    public final KVBlockPool pool;
+    private int[] ids = new int[0]; // pool block id of each logical block
+    private MemorySegment[] table = new MemorySegment[0]; // memory of each logical block
+    private int n_blocks;
+
+    PagedKVCache(KVBlockPool pool) {
+        this.pool = pool;
+    }
+
+    public void store(int layer, int pos, float[] k, float[] v) {
+        // write the key and value of one layer at position pos
+        int b = pos / pool.block_size;
+        while (n_blocks <= b) {
+            append(pool.allocate());
+        }
+        int slot = pos % pool.block_size;
+        MemorySegment block = table[b];
+        if (pool.int8) {
+            quantize(block, k, pool.keyIndex(layer, slot), pool.keyScaleIndex(layer, slot));
+            quantize(block, v, pool.valueIndex(layer, slot), pool.valueScaleIndex(layer, slot));
+            return;
+        }
+        MemorySegment.copy(k, 0, block, ValueLayout.JAVA_FLOAT, pool.keyIndex(layer, slot) * Float.BYTES, pool.kv_dim);
+        MemorySegment.copy(v, 0, block, ValueLayout.JAVA_FLOAT, pool.valueIndex(layer, slot) * Float.BYTES, pool.kv_dim);
+    }
+
+    void quantize(MemorySegment block, float[] x, long index, long scaleIndex) {
+        // symmetric int8 quantization of x, one scale per kv head
+        for (int h = 0; h < pool.n_kv_heads; h++) {
+            int offset = h * pool.head_size;
+            float max = 0.0f;
+            for (int i = 0; i < pool.head_size; i++) {
+                max = Math.max(max, Math.abs(x[offset + i]));
+            }
+            float scale = max / 127.0f;
+            block.setAtIndex(ValueLayout.JAVA_FLOAT, scaleIndex + h, scale);
+            for (int i = 0; i < pool.head_size; i++) {
+                byte quant = (byte) Math.round(scale == 0.0f ? 0.0f : x[offset + i] / scale);
+                block.set(ValueLayout.JAVA_BYTE, index + offset + i, quant);
+            }
+        }
+    }
+
+    public MemorySegment block(int pos) {
+        // the block holding position pos
+        return table[pos / pool.block_size];
+    }
+
+    public void share(int id) {
+        // append a block filled by another cache, e.g. a cached prompt prefix. the block
+        // must be full, positions in it are never stored again
+        pool.retain(id);
+        append(id);
+    }
+
+    public int[] detach() {
+        // hand the blocks over to the caller, along with the references of this cache, and
+        // leave the cache empty. attach() takes them back, possibly into another cache
+        int[] blocks = Arrays.copyOf(ids, n_blocks);
+        Arrays.fill(table, 0, n_blocks, null);
+        n_blocks = 0;
+        return blocks;
+    }
+
+    public void attach(int[] blocks) {
+        // append blocks given by detach(), the references come along with them
+        for (int id : blocks) {
+            append(id);
+        }
+    }
+
+    public int block_id(int b) {
+        return ids[b];
+    }
+
+    void append(int id) {
+        if (n_blocks == ids.length) {
+            int capacity = Math.max(4, 2 * ids.length);
+            ids = Arrays.copyOf(ids, capacity);
+            table = Arrays.copyOf(table, capacity);
+        }
+        ids[n_blocks] = id;
+        table[n_blocks] = pool.segment(id);
+        n_blocks++;
+    }
+
+    public void clear() {
+        // give all blocks back to the pool
+        for (int b = 0; b < n_blocks; b++) {
+            pool.release(ids[b]);
+            table[b] = null;
+        }
+        n_blocks = 0;
+    }
+
+    public int n_blocks() {
+        return n_blocks;
+    }
+}
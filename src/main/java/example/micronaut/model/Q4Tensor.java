@@ -0,0 +1,42 @@
+package example.micronaut.model;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+import lombok.Getter;
+
+@Getter
+public final class Q4Tensor implements Tensor {
+
+    public static final ValueLayout.OfShort SCALE = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    // values are stored as unsigned nibbles with an offset of 8, two per byte. byte j of a
+    // group holds value j in its low nibble and value j + group_size / 2 in its high nibble
+    public final MemorySegment q; // packed 4-bit values, row major
+    public final MemorySegment s; // float16 scale of every group of group_size values
+    public final int group_size;
+
+    public Q4Tensor(MemorySegment q, MemorySegment s, int group_size) {
+        this.q = q;
+        this.s = s;
+        this.group_size = group_size;
+    }
+
+    public float scale(int group) {
+        return Float.float16ToFloat(s.getAtIndex(SCALE, group));
+    }
+
+    @Override
+    public void copyTo(int offset, float[] dst, int dstOffset, int length) {
+        int half = group_size / 2;
+        for (int i = 0; i < length; i++) {
+            int index = offset + i;
+            int group = index / group_size;
+            int within = index % group_size;
+            byte packed = q.get(ValueLayout.JAVA_BYTE, (long) group * half + within % half);
+            int nibble = within < half ? packed & 0x0F : (packed >> 4) & 0x0F;
+            dst[dstOffset + i] = (nibble - 8) * scale(group);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package example.micronaut.model;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+import lombok.Getter;
+
+@Getter
+public final class Q8Tensor implements Tensor {
+
+    public static final ValueLayout.OfFloat SCALE = ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    public final MemorySegment q; // int8 values, row major
+    public final MemorySegment s; // float32 scale of every group of group_size values
+    public final int group_size;
+
+    public Q8Tensor(MemorySegment q, MemorySegment s, int group_size) {
+        this.q = q;
+        this.s = s;
+        this.group_size = group_size;
+    }
+
+    public float scale(int group) {
+        return s.getAtIndex(SCALE, group);
+    }
+
+    @Override
+    public void copyTo(int offset, float[] dst, int dstOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            int index = offset + i;
+            dst[dstOffset + i] = q.get(ValueLayout.JAVA_BYTE, index) * scale(index / group_size);
+        }
+    }
+}
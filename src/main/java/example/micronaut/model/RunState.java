@@ -17,11 +17,19 @@ public class RunState {
     public final float[] att; // buffer for scores/attention values (n_heads, seq_len)
     public final float[] logits; // output logits
 
+    // scratch of the kernels, allocated once instead of on every token
+    public final byte[][] xq; // input of a matmul quantized for int8 weights (1, max(dim, hidden_dim))
+    public final float[][] xs; // scales of xq, at most one per value (1, max(dim, hidden_dim))
+    public final float[][] q_row; // q as the single row of a batch (1, dim)
+    public final float[][] k_row; // (1, kv_dim)
+    public final float[][] v_row; // (1, kv_dim)
+    public final float[][] xb_row; // (1, dim)
+    public final float[][] hb_row; // (1, hidden_dim)
+
     // kv cache
-    public final float[][] key_cache; // (layer, seq_len, dim)
-    public final float[][] value_cache; // (layer, seq_len, dim)
+    public final PagedKVCache kv_cache; // (layer, seq_len, kv_dim) keys and values, in blocks
 
-    RunState(Config config) {
+    RunState(Config config, KVBlockPool kv_pool) {
         int kv_dim = (config.dim * config.n_kv_heads) / config.n_heads;
         this.x = new float[config.dim];
         this.xb = new float[config.dim];
@@ -33,7 +41,13 @@ public class RunState {
         this.v = new float[kv_dim];
         this.att = new float[config.n_heads * config.seq_len];
         this.logits = new float[config.vocab_size];
-        this.key_cache = new float[config.n_layers][config.seq_len * kv_dim];
-        this.value_cache = new float[config.n_layers][config.seq_len * kv_dim];
+        this.xq = new byte[1][Math.max(config.dim, config.hidden_dim)];
+        this.xs = new float[1][Math.max(config.dim, config.hidden_dim)];
+        this.q_row = new float[][]{q};
+        this.k_row = new float[][]{k};
+        this.v_row = new float[][]{v};
+        this.xb_row = new float[][]{xb};
+        this.hb_row = new float[][]{hb};
+        this.kv_cache = new PagedKVCache(kv_pool);
     }
 }
@@ -3,17 +3,23 @@ package example.micronaut.model;
 public class Sampler {
 
     public final int vocab_size;
-    public final int[] probindex; // buffer used in top-p sampling
+    public final int[] probindex; // buffer used in top-p and top-k sampling
     public final float temperature;
     public final float topp;
+    public final int topk; // sample from the topk most likely tokens only, 0: off
     public long rng_seed;
 
     public Sampler(int vocab_size, float temperature, float topp, long rng_seed) {
+        this(vocab_size, temperature, topp, 0, rng_seed);
+    }
+
+    public Sampler(int vocab_size, float temperature, float topp, int topk, long rng_seed) {
         this.vocab_size = vocab_size;
         this.temperature = temperature;
         this.topp = topp;
+        this.topk = topk;
         this.rng_seed = rng_seed;
-        // buffer only used with nucleus sampling; may not need but it's ~small
+        // buffer only used with nucleus or top-k sampling; may not need but it's ~small
         this.probindex = new int[vocab_size];
     }
 
@@ -0,0 +1,21 @@
+package example.micronaut.model;
+
+import lombok.Getter;
+
+@Getter
+public class Session {
+
+    public final int id; // slot of this session in its pool
+    public final RunState state; // private activations and kv cache of this session
+    public final Sampler sampler; // private rng state of this session
+    public final BatchState prefill; // activations for processing prompt chunks
+    public Speculation speculation; // speculative decoding state, created on first use
+
+    public Session(int id, Config config, KVBlockPool kv_pool, int prefill_chunk, float temperature, float topp,
+            int topk, long rng_seed) {
+        this.id = id;
+        this.state = new RunState(config, kv_pool);
+        this.prefill = new BatchState(config, prefill_chunk);
+        this.sampler = new Sampler(config.vocab_size, temperature, topp, topk, rng_seed);
+    }
+}
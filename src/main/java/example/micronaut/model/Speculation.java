@@ -0,0 +1,54 @@
+package example.micronaut.model;
+
+import lombok.Getter;
+
+@Getter
+public class Speculation {
+
+    public final int k; // max number of tokens guessed per step
+
+    // one verification pass of the target model
+    public final int[] tokens; // (k + 1,) the last token of the sequence, then the guesses
+    public final float[][] logits; // (k + 1, vocab_size) the target logits of every row
+    // draft distribution of each guess, null rows are guesses made with certainty
+    public final float[][] q; // (k, vocab_size)
+
+    // state of the draft model, null without one
+    public final RunState draft; // activations and kv cache of the draft model
+    public final BatchState draft_prefill; // activations for catching the draft model up
+    public int draft_pos; // positions of the draft kv cache that hold the sequence
+
+    // n-grams of the sequence for prompt lookup, null without
+    public final NGramIndex ngrams;
+
+    public Speculation(Config config, int k, NGramIndex ngrams) {
+        this.k = k;
+        this.tokens = new int[k + 1];
+        this.logits = new float[k + 1][config.vocab_size];
+        this.q = new float[k][];
+        this.draft = null;
+        this.draft_prefill = null;
+        this.ngrams = ngrams;
+    }
+
+    public Speculation(Config config, int k, Config draft_config, KVBlockPool draft_pool, int prefill_chunk) {
+        this.k = k;
+        this.tokens = new int[k + 1];
+        this.logits = new float[k + 1][config.vocab_size];
+        this.q = new float[k][config.vocab_size];
+        this.draft = new RunState(draft_config, draft_pool);
+        this.draft_prefill = new BatchState(draft_config, prefill_chunk);
+        this.ngrams = null;
+    }
+
+    public void reset() {
+        // the draft kv cache blocks go back to their pool, the n-grams are dropped
+        if (draft != null) {
+            draft.kv_cache.clear();
+        }
+        if (ngrams != null) {
+            ngrams.clear();
+        }
+        draft_pos = 0;
+    }
+}
@@ -0,0 +1,7 @@
+package example.micronaut.model;
+
+public sealed interface Tensor permits F32Tensor, Q8Tensor, Q4Tensor, F16Tensor, BF16Tensor {
+
+    // copy length values starting at element offset into dst, dequantizing them if needed
+    void copyTo(int offset, float[] dst, int dstOffset, int length);
+}
@@ -0,0 +1,25 @@
+package example.micronaut.model;
+
+// storage format of a weight matrix, the id is what checkpoints store in their header
+public enum TensorType {
+    F32(0), // float32
+    Q8_0(1), // int8 values, float32 scale per group
+    Q4_0(2), // packed 4-bit values, float16 scale per group
+    F16(3), // IEEE 754 half precision
+    BF16(4); // bfloat16, the upper half of a float32
+
+    public final int id;
+
+    TensorType(int id) {
+        this.id = id;
+    }
+
+    public static TensorType of(int id) {
+        for (TensorType type : values()) {
+            if (type.id == id) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("unknown tensor type " + id);
+    }
+}
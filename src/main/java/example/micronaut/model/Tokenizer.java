@@ -7,6 +7,9 @@ import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 
 public class Tokenizer {
@@ -15,7 +18,17 @@ public class Tokenizer {
     public final float[] vocab_scores;
     public final int vocab_size;
     public final int max_token_length;
-    public Map<String, Integer> sorted_vocab;
+    public final Map<String, Integer> sorted_vocab;
+    // what each token decodes to: its raw bytes ('<0x0A>' is the single byte 0x0A) and
+    // those bytes as a string, computed once instead of parsing every emitted token
+    public final byte[][] vocab_bytes;
+    public final String[] vocab_pieces;
+
+    // lookup tables of the BPE encoder, built once so that encoding needs no string
+    // concatenation or hashing of strings: (left id, right id) -> id of the token
+    // spelling their concatenation, and codepoint -> id of its single codepoint token
+    private final LongIntTable merges;
+    private final LongIntTable codepoints;
 
     public Tokenizer(String tokenizer_path, int vocab_size) throws IOException {
         // i should have written the vocab_size into the tokenizer file... sigh
@@ -23,6 +36,8 @@ public class Tokenizer {
         // malloc space to hold the scores and the strings
         this.vocab = new String[vocab_size];
         this.vocab_scores = new float[vocab_size];
+        this.vocab_bytes = new byte[vocab_size][];
+        this.vocab_pieces = new String[vocab_size];
 
         // read in the file
         try (FileChannel channel = FileChannel.open(Paths.get(tokenizer_path), StandardOpenOption.READ)) {
@@ -35,7 +50,103 @@ public class Tokenizer {
                 byte[] bytes = new byte[len];
                 tokBuffer.get(bytes);
                 this.vocab[i] = new String(bytes, StandardCharsets.UTF_8);
+                this.vocab_bytes[i] = bytes;
+                // careful, some tokens designate raw bytes, and look like e.g. '<0x01>'
+                if (len == 6 && vocab[i].startsWith("<0x") && vocab[i].endsWith(">")) {
+                    this.vocab_bytes[i] = new byte[]{(byte) Integer.parseInt(vocab[i].substring(3, 5), 16)};
+                }
+                this.vocab_pieces[i] = new String(vocab_bytes[i], StandardCharsets.UTF_8);
+            }
+        }
+
+        // sort vocabulary, eagerly so that concurrent requests never race to build it
+        Map<String, Integer> sorted = new HashMap<>();
+        for (int i = 0; i < vocab_size; i++) {
+            sorted.put(vocab[i], i);
+        }
+        this.sorted_vocab = Collections.unmodifiableMap(sorted);
+
+        // every way of splitting a token into two tokens is a merge producing it
+        this.merges = new LongIntTable(vocab_size);
+        this.codepoints = new LongIntTable(vocab_size);
+        for (int id = 0; id < vocab_size; id++) {
+            String str = vocab[id];
+            if (!str.isEmpty() && str.codePointCount(0, str.length()) == 1) {
+                codepoints.put(str.codePointAt(0), id);
+            }
+            for (int k = 1; k < str.length(); k++) {
+                Integer left = sorted.get(str.substring(0, k));
+                Integer right = left == null ? null : sorted.get(str.substring(k));
+                if (right != null) {
+                    merges.put(pair(left, right), sorted.get(str));
+                }
+            }
+        }
+    }
+
+    static long pair(int left, int right) {
+        return ((long) left << 32) | (right & 0xFFFFFFFFL);
+    }
+
+    public int merge(int left, int right) {
+        // id of the token spelling vocab[left] + vocab[right], or -1 if not in vocab
+        return merges.get(pair(left, right));
+    }
+
+    public int codepoint(int cp) {
+        // id of the token spelling the single codepoint cp, or -1 if not in vocab
+        return codepoints.get(cp);
+    }
+
+    // open addressing hash table from long keys to non-negative int values
+    static final class LongIntTable {
+        private long[] keys;
+        private int[] values;
+        private int size;
+
+        LongIntTable(int expected) {
+            int capacity = Integer.highestOneBit(Math.max(16, 2 * expected) - 1) << 1;
+            this.keys = new long[capacity];
+            this.values = new int[capacity];
+            Arrays.fill(values, -1);
+        }
+
+        int slot(long key) {
+            int mask = keys.length - 1;
+            long h = key * 0x9E3779B97F4A7C15L;
+            int i = (int) (h ^ (h >>> 32)) & mask;
+            while (values[i] != -1 && keys[i] != key) {
+                i = (i + 1) & mask;
             }
+            return i;
+        }
+
+        void put(long key, int value) {
+            if (2 * (size + 1) > keys.length) {
+                // keep the table at most half full
+                long[] old_keys = keys;
+                int[] old_values = values;
+                keys = new long[2 * old_keys.length];
+                values = new int[2 * old_keys.length];
+                Arrays.fill(values, -1);
+                for (int i = 0; i < old_keys.length; i++) {
+                    if (old_values[i] != -1) {
+                        int j = slot(old_keys[i]);
+                        keys[j] = old_keys[i];
+                        values[j] = old_values[i];
+                    }
+                }
+            }
+            int i = slot(key);
+            if (values[i] == -1) {
+                size++;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        int get(long key) {
+            return values[slot(key)];
         }
     }
 }
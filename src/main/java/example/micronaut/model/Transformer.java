@@ -8,15 +8,21 @@ import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 import lombok.Getter;
 
 @Getter
 public class Transformer {
 
+    // versioned llama2.c checkpoints start with this magic ("ak42") and a 256 byte header
+    public static final int MAGIC = 0x616b3432;
+    public static final int HEADER_SIZE = 256;
+    public static final int VERSION_Q8_0 = 2; // int8 group quantized, see CheckpointConverter
+    public static final int VERSION_MIXED = 3; // a TensorType per matrix, see CheckpointConverter
+
     public final Config config; // the hyperparameters of the architecture (the blueprint)
-    public final Weights weights; // the weights of the model
-    public final RunState state; // buffers for the "wave" of activations in the forward pass
+    public final Weights weights; // the weights of the model, read-only and shared by all sessions
 
     // some more state needed to properly clean up the memory mapping (sigh)
     public final Arena memoryArena; // scope of the memory mapping
@@ -32,12 +38,38 @@ public class Transformer {
             this.data = mappedFile;
             int configSize = 7 * Integer.BYTES;
 
-            // read in the config header
-            ByteBuffer configBuffer = mappedFile.asSlice(0, configSize).asByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
-            this.config = new Config(configBuffer);
-            System.out.println(config);
-            this.state = new RunState(config);
-            this.weights = new Weights(config, mappedFile.asSlice(configSize));
+            ByteBuffer header = mappedFile.asSlice(0, Math.min(HEADER_SIZE, this.file_size)).asByteBuffer()
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(0) != MAGIC) {
+                // legacy float32 checkpoint: read in the config header
+                ByteBuffer configBuffer = mappedFile.asSlice(0, configSize).asByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
+                this.config = new Config(configBuffer);
+                System.out.println(config);
+                this.weights = new Weights(config, mappedFile.asSlice(configSize));
+                return;
+            }
+
+            // versioned checkpoint: magic, version, config, shared classifier flag, group size
+            // and, from version 3 on, the TensorType of each matrix and of the rmsnorm weights
+            int version = header.getInt(Integer.BYTES);
+            if (version != VERSION_Q8_0 && version != VERSION_MIXED) {
+                throw new IOException("unsupported checkpoint version " + version + " in " + checkpoint_path);
+            }
+            boolean shared_classifier = header.get(2 * Integer.BYTES + configSize) != 0;
+            int group_size = header.getInt(2 * Integer.BYTES + configSize + 1);
+            TensorType[] types = new TensorType[Weights.MATRICES.length];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = version == VERSION_Q8_0
+                        ? TensorType.Q8_0
+                        : TensorType.of(header.get(3 * Integer.BYTES + configSize + 1 + i));
+            }
+            TensorType norms = version == VERSION_Q8_0
+                    ? TensorType.F32
+                    : TensorType.of(header.get(3 * Integer.BYTES + configSize + 1 + types.length));
+            this.config = new Config(header.position(2 * Integer.BYTES), shared_classifier);
+            System.out.println(config + " group_size=" + group_size + " types=" + Arrays.toString(types)
+                    + " norms=" + norms);
+            this.weights = new Weights(config, mappedFile.asSlice(HEADER_SIZE), group_size, types, norms);
         }
     }
 }
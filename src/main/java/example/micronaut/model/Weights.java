@@ -9,42 +9,95 @@ import lombok.Getter;
 @Getter
 public class Weights {
 
+    // the matrices in checkpoint order, versioned checkpoints store a TensorType for each
+    public static final String[] MATRICES = {"token_embedding_table", "wq", "wk", "wv", "wo", "w1", "w2", "w3", "wcls"};
+
     // token embedding table
-    public final FloatBuffer token_embedding_table; // (vocab_size, dim)
+    public final Tensor token_embedding_table; // (vocab_size, dim)
     // weights for rmsnorms
-    public final FloatBuffer[] rms_att_weight; // (layer, dim) rmsnorm weights
+    public final Tensor[] rms_att_weight; // (layer, dim) rmsnorm weights
     // weights for matmuls. note dim == n_heads * head_size
-    public final FloatBuffer[] wq; // (layer, dim, n_heads * head_size)
-    public final FloatBuffer[] wk; // (layer, dim, n_kv_heads * head_size)
-    public final FloatBuffer[] wv; // (layer, dim, n_kv_heads * head_size)
-    public final FloatBuffer[] wo; // (layer, n_heads * head_size, dim)
-    public final FloatBuffer[] rms_ffn_weight; // (layer, dim)
+    public final Tensor[] wq; // (layer, dim, n_heads * head_size)
+    public final Tensor[] wk; // (layer, dim, n_kv_heads * head_size)
+    public final Tensor[] wv; // (layer, dim, n_kv_heads * head_size)
+    public final Tensor[] wo; // (layer, n_heads * head_size, dim)
+    public final Tensor[] rms_ffn_weight; // (layer, dim)
     // weights for ffn
-    public final FloatBuffer[] w1; // (layer, hidden_dim, dim)
-    public final FloatBuffer[] w2; // (layer, dim, hidden_dim)
-    public final FloatBuffer[] w3; // (layer, hidden_dim, dim)
+    public final Tensor[] w1; // (layer, hidden_dim, dim)
+    public final Tensor[] w2; // (layer, dim, hidden_dim)
+    public final Tensor[] w3; // (layer, hidden_dim, dim)
     // final rmsnorm
-    public final FloatBuffer rms_final_weight; // (dim,)
+    public final Tensor rms_final_weight; // (dim,)
     // (optional) classifier weights for the logits, on the last layer
-    public final FloatBuffer wcls; // (vocab_size, dim)
+    public final Tensor wcls; // (vocab_size, dim)
 
-    static FloatBuffer takeFloats(MemorySegment memorySegment, long[] position, int... dims) {
-        long totalBytes = 1;
+    static long numel(int... dims) {
+        long n = 1;
         for (int d : dims) {
-            totalBytes *= d;
+            n *= d;
         }
-        totalBytes *= Float.BYTES;
+        return n;
+    }
+
+    static FloatBuffer takeFloats(MemorySegment memorySegment, long[] position, int... dims) {
+        long totalBytes = numel(dims) * Float.BYTES;
         MemorySegment slice = memorySegment.asSlice(position[0], totalBytes);
         position[0] += totalBytes;
         return slice.asByteBuffer().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
     }
 
-    static FloatBuffer[] takeArray(MemorySegment memorySegment, long[] position, int dim0, int... dims) {
-        FloatBuffer[] segments = new FloatBuffer[dim0];
+    static Tensor takeF32(MemorySegment memorySegment, long[] position, int... dims) {
+        return new F32Tensor(takeFloats(memorySegment, position, dims));
+    }
+
+    static Tensor[] takeF32Array(MemorySegment memorySegment, long[] position, int dim0, int... dims) {
+        Tensor[] tensors = new Tensor[dim0];
+        for (int i = 0; i < dim0; ++i) {
+            tensors[i] = takeF32(memorySegment, position, dims);
+        }
+        return tensors;
+    }
+
+    static Tensor take(MemorySegment memorySegment, long[] position, TensorType type, int group_size, int... dims) {
+        long n = numel(dims);
+        return switch (type) {
+            case F32 -> takeF32(memorySegment, position, dims);
+            case Q8_0 -> {
+                // int8 values followed by one float32 scale per group
+                MemorySegment q = memorySegment.asSlice(position[0], n);
+                position[0] += n;
+                MemorySegment s = memorySegment.asSlice(position[0], n / group_size * Float.BYTES);
+                position[0] += n / group_size * Float.BYTES;
+                yield new Q8Tensor(q, s, group_size);
+            }
+            case Q4_0 -> {
+                // packed nibbles followed by one float16 scale per group
+                MemorySegment q = memorySegment.asSlice(position[0], n / 2);
+                position[0] += n / 2;
+                MemorySegment s = memorySegment.asSlice(position[0], n / group_size * Short.BYTES);
+                position[0] += n / group_size * Short.BYTES;
+                yield new Q4Tensor(q, s, group_size);
+            }
+            case F16 -> {
+                MemorySegment data = memorySegment.asSlice(position[0], n * Short.BYTES);
+                position[0] += n * Short.BYTES;
+                yield new F16Tensor(data);
+            }
+            case BF16 -> {
+                MemorySegment data = memorySegment.asSlice(position[0], n * Short.BYTES);
+                position[0] += n * Short.BYTES;
+                yield new BF16Tensor(data);
+            }
+        };
+    }
+
+    static Tensor[] takeArray(MemorySegment memorySegment, long[] position, TensorType type, int group_size,
+            int dim0, int... dims) {
+        Tensor[] tensors = new Tensor[dim0];
         for (int i = 0; i < dim0; ++i) {
-            segments[i] = takeFloats(memorySegment, position, dims);
+            tensors[i] = take(memorySegment, position, type, group_size, dims);
         }
-        return segments;
+        return tensors;
     }
 
     // ----------------------------------------------------------------------------
@@ -52,17 +105,17 @@ public class Weights {
     // read weights from memory segment
     Weights(Config config, MemorySegment memorySegment) {
         long[] position = new long[]{0};
-        this.token_embedding_table = takeFloats(memorySegment, position, config.vocab_size, config.dim);
-        this.rms_att_weight = takeArray(memorySegment, position, config.n_layers, config.dim);
-        this.wq = takeArray(memorySegment, position, config.n_layers, config.dim, config.n_heads * config.head_size);
-        this.wk = takeArray(memorySegment, position, config.n_layers, config.dim, config.n_kv_heads * config.head_size);
-        this.wv = takeArray(memorySegment, position, config.n_layers, config.dim, config.n_kv_heads * config.head_size);
-        this.wo = takeArray(memorySegment, position, config.n_layers, config.n_heads * config.head_size, config.dim);
-        this.rms_ffn_weight = takeArray(memorySegment, position, config.n_layers, config.dim);
-        this.w1 = takeArray(memorySegment, position, config.n_layers, config.hidden_dim, config.dim);
-        this.w2 = takeArray(memorySegment, position, config.n_layers, config.dim, config.hidden_dim);
-        this.w3 = takeArray(memorySegment, position, config.n_layers, config.hidden_dim, config.dim);
-        this.rms_final_weight = takeFloats(memorySegment, position, config.dim);
+        this.token_embedding_table = takeF32(memorySegment, position, config.vocab_size, config.dim);
+        this.rms_att_weight = takeF32Array(memorySegment, position, config.n_layers, config.dim);
+        this.wq = takeF32Array(memorySegment, position, config.n_layers, config.dim, config.n_heads * config.head_size);
+        this.wk = takeF32Array(memorySegment, position, config.n_layers, config.dim, config.n_kv_heads * config.head_size);
+        this.wv = takeF32Array(memorySegment, position, config.n_layers, config.dim, config.n_kv_heads * config.head_size);
+        this.wo = takeF32Array(memorySegment, position, config.n_layers, config.n_heads * config.head_size, config.dim);
+        this.rms_ffn_weight = takeF32Array(memorySegment, position, config.n_layers, config.dim);
+        this.w1 = takeF32Array(memorySegment, position, config.n_layers, config.hidden_dim, config.dim);
+        this.w2 = takeF32Array(memorySegment, position, config.n_layers, config.dim, config.hidden_dim);
+        this.w3 = takeF32Array(memorySegment, position, config.n_layers, config.hidden_dim, config.dim);
+        this.rms_final_weight = takeF32(memorySegment, position, config.dim);
 
         // skip what used to be freq_cis_real (for RoPE)
         position[0] += (config.seq_len * config.head_size / 2) * Float.BYTES;
@@ -72,6 +125,29 @@ public class Weights {
 
         this.wcls = config.shared_weights
                 ? this.token_embedding_table
-                : takeFloats(memorySegment, position, config.vocab_size, config.dim);
+                : takeF32(memorySegment, position, config.vocab_size, config.dim);
+    }
+
+    // read the weights of a versioned checkpoint from memory segment, types holds the
+    // format of each of the MATRICES (all Q8_0 for llama2.c export version 2) and norms
+    // the one of the rmsnorm weights (F32 unless stored in half precision)
+    Weights(Config config, MemorySegment memorySegment, int group_size, TensorType[] types, TensorType norms) {
+        long[] position = new long[]{0};
+        // the rmsnorm weights come first
+        this.rms_att_weight = takeArray(memorySegment, position, norms, group_size, config.n_layers, config.dim);
+        this.rms_ffn_weight = takeArray(memorySegment, position, norms, group_size, config.n_layers, config.dim);
+        this.rms_final_weight = take(memorySegment, position, norms, group_size, config.dim);
+        // then all the matrices, each in its own format
+        this.token_embedding_table = take(memorySegment, position, types[0], group_size, config.vocab_size, config.dim);
+        this.wq = takeArray(memorySegment, position, types[1], group_size, config.n_layers, config.dim, config.n_heads * config.head_size);
+        this.wk = takeArray(memorySegment, position, types[2], group_size, config.n_layers, config.dim, config.n_kv_heads * config.head_size);
+        this.wv = takeArray(memorySegment, position, types[3], group_size, config.n_layers, config.dim, config.n_kv_heads * config.head_size);
+        this.wo = takeArray(memorySegment, position, types[4], group_size, config.n_layers, config.n_heads * config.head_size, config.dim);
+        this.w1 = takeArray(memorySegment, position, types[5], group_size, config.n_layers, config.hidden_dim, config.dim);
+        this.w2 = takeArray(memorySegment, position, types[6], group_size, config.n_layers, config.dim, config.hidden_dim);
+        this.w3 = takeArray(memorySegment, position, types[7], group_size, config.n_layers, config.hidden_dim, config.dim);
+        this.wcls = config.shared_weights
+                ? this.token_embedding_table
+                : take(memorySegment, position, types[8], group_size, config.vocab_size, config.dim);
     }
 }
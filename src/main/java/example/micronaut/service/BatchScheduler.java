@@ -0,0 +1,202 @@
+package example.micronaut.service;
+
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import example.micronaut.model.BatchState;
+import example.micronaut.model.RunState;
+import example.micronaut.model.Transformer;
+import example.micronaut.utils.TransformerUtils;
+
+public class BatchScheduler implements AutoCloseable {
+
+    private final Transformer transformer;
+    private final int max_batch;
+    private final long max_wait_nanos;
+
+    // decode steps submitted by the sessions, waiting for the next iteration
+    private final BlockingQueue<Step> pending = new LinkedBlockingQueue<>();
+    // number of sessions decoding through this scheduler that are ready for their next
+    // step: the joined sessions, less the paused ones (prefilling or waiting for their client)
+    private final AtomicInteger ready = new AtomicInteger();
+    private final Thread worker;
+    private volatile boolean closed;
+
+    // the iteration being assembled, only touched by the worker thread
+    private final BatchState batch;
+    private final Step[] steps;
+    private final RunState[] states;
+    private final int[] tokens;
+    private final int[] positions;
+
+    // queued by pause() to wake a gathering iteration up, so that it stops waiting for the
+    // paused session. it is not a step and never forwarded
+    private static final Step WAKE = new Step(null, 0, 0);
+
+    private static final class Step {
+        final RunState state;
+        final int token;
+        final int pos;
+        final CompletableFuture<float[]> logits = new CompletableFuture<>();
+
+        Step(RunState state, int token, int pos) {
+            this.state = state;
+            this.token = token;
+            this.pos = pos;
+        }
+    }
+
+    public BatchScheduler(Transformer transformer, int max_batch, long max_wait_micros) {
+        if (max_batch < 1) {
+            throw new IllegalArgumentException("max batch size must be at least 1, got " + max_batch);
+        }
+        this.transformer = transformer;
+        this.max_batch = max_batch;
+        this.max_wait_nanos = TimeUnit.MICROSECONDS.toNanos(max_wait_micros);
+        this.batch = new BatchState(transformer.config, max_batch);
+        this.steps = new Step[max_batch];
+        this.states = new RunState[max_batch];
+        this.tokens = new int[max_batch];
+        this.positions = new int[max_batch];
+        this.worker = Thread.ofPlatform().name("llama2-batch-scheduler").daemon().start(this::run);
+    }
+
+    // a session joins before its first decode step and leaves after its last one, the
+    // scheduler uses the count to know how many steps to wait for in each iteration. in
+    // between, a session that will not submit a step for a while (a prefill, a client
+    // that has not asked for more) pauses, and iterations go ahead without it until it
+    // resumes
+    public void join() {
+        ready.incrementAndGet();
+    }
+
+    public void leave() {
+        ready.decrementAndGet();
+    }
+
+    public void pause() {
+        ready.decrementAndGet();
+        pending.add(WAKE);
+    }
+
+    public void resume() {
+        ready.incrementAndGet();
+    }
+
+    public float[] forward(RunState state, int token, int pos) {
+        // queue one decode step and block until the iteration containing it is done
+        Step step = new Step(state, token, pos);
+        pending.add(step);
+        if (closed && pending.remove(step)) {
+            // the worker is gone or leaving, nothing would run it
+            fail(step);
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return step.logits.get();
+                } catch (InterruptedException e) {
+                    // the step is already queued and will write into state, so keep waiting
+                    // for it before handing state back to the caller
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("batched forward failed", e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                int n = gather();
+                for (int r = 0; r < n; r++) {
+                    states[r] = steps[r].state;
+                    tokens[r] = steps[r].token;
+                    positions[r] = steps[r].pos;
+                }
+                try {
+                    TransformerUtils.forward(transformer, batch, states, tokens, positions, n);
+                    for (int r = 0; r < n; r++) {
+                        steps[r].logits.complete(states[r].logits);
+                    }
+                } catch (Throwable t) {
+                    for (int r = 0; r < n; r++) {
+                        steps[r].logits.completeExceptionally(t);
+                    }
+                }
+                Arrays.fill(steps, 0, n, null);
+                Arrays.fill(states, 0, n, null);
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } finally {
+            // fail the steps of the iteration being gathered (or run) and those still
+            // queued, their sessions block until their step completes
+            for (Step step : steps) {
+                if (step != null) {
+                    fail(step);
+                }
+            }
+            Step step;
+            while ((step = pending.poll()) != null) {
+                fail(step);
+            }
+        }
+    }
+
+    private static void fail(Step step) {
+        // a step that already completed keeps its logits
+        step.logits.completeExceptionally(new IllegalStateException("batch scheduler is closed"));
+    }
+
+    private int gather() throws InterruptedException {
+        // block until some session submits a step, then give the other ready sessions a
+        // short window to submit theirs so that they join this iteration instead of the next.
+        // paused sessions are not waited for, they join a later iteration
+        Step first;
+        do {
+            first = pending.take();
+        } while (first == WAKE);
+        steps[0] = first;
+        int n = 1;
+        long deadline = System.nanoTime() + max_wait_nanos;
+        while (n < max_batch) {
+            Step next = pending.poll();
+            if (next == null) {
+                if (n >= ready.get()) {
+                    break; // every ready session is in
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                next = pending.poll(remaining, TimeUnit.NANOSECONDS);
+                if (next == null) {
+                    break;
+                }
+            }
+            if (next != WAKE) {
+                steps[n++] = next;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public void close() {
+        // the worker fails the remaining steps as it exits, forward() fails those queued after
+        closed = true;
+        worker.interrupt();
+    }
+}
@@ -0,0 +1,126 @@
+package example.micronaut.service;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+import example.micronaut.model.KVBlockPool;
+
+// ----------------------------------------------------------------------------
+// conversations of the chat API kept between requests, by session id. a request takes
+// its conversation, continues it in a pooled Session, then parks it again: the kv cache
+// blocks move out of the Session along with their references, so only the new turn is
+// forwarded next time, and the Session goes back to the pool. parked conversations hold
+// at most max_blocks blocks, beyond which (or when the kv block pool runs out of memory)
+// the least recently used are dropped and start over from an empty cache
+public class ChatSessions {
+
+    static final class Conversation {
+        int[] blocks = new int[0]; // kv cache blocks, with their references, while parked
+        int pos; // positions in the kv cache
+        int token = -1; // last token sampled, not in the kv cache yet. -1: none
+        long rng_seed; // sampler state, 0: not started
+    }
+
+    private final KVBlockPool pool;
+    private final int max_blocks;
+    // parked conversations, least recently used first
+    private final LinkedHashMap<String, Conversation> parked = new LinkedHashMap<>(16, 0.75f, true);
+    // ids of the conversations taken by a request
+    private final Set<String> active = new HashSet<>();
+    private int n_blocks;
+
+    public ChatSessions(KVBlockPool pool, int max_blocks) {
+        if (max_blocks < 0) {
+            throw new IllegalArgumentException("chat sessions cannot have negative max blocks, got " + max_blocks);
+        }
+        this.pool = pool;
+        this.max_blocks = max_blocks;
+        pool.addReclaimer(this::reclaim);
+    }
+
+    synchronized Conversation take(String id) {
+        // the conversation of id, or a new one when it is unknown or was evicted. it stays
+        // taken until park() or end()
+        if (!active.add(id)) {
+            throw new IllegalStateException("conversation " + id + " already has a request in flight");
+        }
+        Conversation conversation = parked.remove(id);
+        if (conversation == null) {
+            return new Conversation();
+        }
+        n_blocks -= conversation.blocks.length;
+        return conversation;
+    }
+
+    synchronized void park(String id, Conversation conversation) {
+        // keep a taken conversation, holding the blocks of its kv cache, for its next request.
+        // blocks past pos hold a turn that did not complete (cancelled, timed out) and are
+        // given back, so the kv cache lines up with the positions of the next turn. at pos 0
+        // that is all of them, and the next turn starts from an empty cache
+        active.remove(id);
+        int keep = KVBlockPool.blocksFor(conversation.pos, pool.block_size);
+        if (conversation.blocks.length > keep) {
+            for (int b = keep; b < conversation.blocks.length; b++) {
+                pool.release(conversation.blocks[b]);
+            }
+            conversation.blocks = Arrays.copyOf(conversation.blocks, keep);
+        }
+        parked.put(id, conversation);
+        n_blocks += conversation.blocks.length;
+        while (n_blocks > max_blocks && evict()) {
+            // the least recently used go first, this one last
+        }
+    }
+
+    synchronized void end(String id, Conversation conversation) {
+        // forget a taken conversation, e.g. one that is full, and give its blocks back
+        active.remove(id);
+        release(conversation);
+    }
+
+    public synchronized boolean remove(String id) {
+        // drop a parked conversation, false when it is unknown or taken
+        Conversation conversation = parked.remove(id);
+        if (conversation == null) {
+            return false;
+        }
+        n_blocks -= conversation.blocks.length;
+        release(conversation);
+        return true;
+    }
+
+    public synchronized boolean reclaim() {
+        // give the blocks of the least recently used conversation back to the pool
+        return evict();
+    }
+
+    private boolean evict() {
+        Iterator<Conversation> lru = parked.values().iterator();
+        if (!lru.hasNext()) {
+            return false;
+        }
+        Conversation conversation = lru.next();
+        lru.remove();
+        n_blocks -= conversation.blocks.length;
+        release(conversation);
+        return true;
+    }
+
+    private void release(Conversation conversation) {
+        for (int id : conversation.blocks) {
+            pool.release(id);
+        }
+        conversation.blocks = new int[0];
+    }
+
+    public synchronized int conversations() {
+        return parked.size();
+    }
+
+    public synchronized int parked_blocks() {
+        return n_blocks;
+    }
+}
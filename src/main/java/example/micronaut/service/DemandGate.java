@@ -0,0 +1,67 @@
+package example.micronaut.service;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import reactor.core.publisher.FluxSink;
+
+// ----------------------------------------------------------------------------
+// holds a generation loop back while its subscriber has no outstanding demand, so a
+// slow client pauses inference instead of piling up tokens in the buffer of the sink.
+// every request (or the cancellation) of the subscriber wakes the loop up to check again.
+// the wait is bounded by the deadline of the request: a client that stops reading past
+// it gets the stream ended with a TimeoutException, and the session is freed. while it
+// waits, the session is paused in its batch scheduler, if any, so that the steps of the
+// other sessions do not wait for it
+final class DemandGate {
+
+    // how often a waiting loop checks its deadline, besides the wake-ups of the subscriber
+    private static final long SLICE_MILLIS = 50;
+
+    private final FluxSink<?> emitter;
+    private final Limits limits;
+    private final BatchScheduler batchScheduler; // null: not batched
+    private final Semaphore signal = new Semaphore(0);
+
+    DemandGate(FluxSink<?> emitter, Limits limits, BatchScheduler batchScheduler) {
+        this.emitter = emitter;
+        this.limits = limits;
+        this.batchScheduler = batchScheduler;
+        emitter.onRequest(n -> signal.release());
+        emitter.onDispose(signal::release);
+    }
+
+    boolean await() {
+        // true once the subscriber requested more, false when it has cancelled or the
+        // deadline passed first (the stream is then ended with the timeout)
+        if (emitter.requestedFromDownstream() != 0 || batchScheduler == null) {
+            return waitForDemand();
+        }
+        batchScheduler.pause();
+        try {
+            return waitForDemand();
+        } finally {
+            batchScheduler.resume();
+        }
+    }
+
+    private boolean waitForDemand() {
+        while (emitter.requestedFromDownstream() == 0) {
+            if (emitter.isCancelled()) {
+                return false;
+            }
+            if (limits.expired()) {
+                emitter.error(new TimeoutException("the client did not read the output before the deadline"));
+                return false;
+            }
+            try {
+                signal.tryAcquire(SLICE_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return !emitter.isCancelled();
+    }
+}
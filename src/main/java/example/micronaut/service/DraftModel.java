@@ -0,0 +1,74 @@
+package example.micronaut.service;
+
+import java.util.Arrays;
+
+import example.micronaut.model.Config;
+import example.micronaut.model.KVBlockPool;
+import example.micronaut.model.Session;
+import example.micronaut.model.Speculation;
+import example.micronaut.model.Transformer;
+import example.micronaut.utils.SamplingUtils;
+import example.micronaut.utils.TransformerUtils;
+
+// ----------------------------------------------------------------------------
+// guesses tokens with a small checkpoint sharing the vocabulary of the target, e.g.
+// stories15M ahead of stories110M. every session keeps a draft kv cache of its own,
+// from a separate block pool, that catches up on the accepted tokens at the next step
+public class DraftModel implements Drafter {
+
+    private final Transformer draft;
+    private final KVBlockPool kv_pool;
+    private final int prefill_chunk;
+
+    public DraftModel(Transformer draft, KVBlockPool kv_pool, int prefill_chunk) {
+        this.draft = draft;
+        this.kv_pool = kv_pool;
+        this.prefill_chunk = prefill_chunk;
+    }
+
+    @Override
+    public Speculation speculation(Session session, Config config, int k) {
+        if (session.speculation == null) {
+            session.speculation = new Speculation(config, k, draft.config, kv_pool, prefill_chunk);
+        }
+        return session.speculation;
+    }
+
+    @Override
+    public int propose(Session session, int[] tokens, int n, int k) {
+        Speculation s = session.speculation;
+        int vocab_size = session.sampler.vocab_size;
+        k = Math.min(k, draft.config.seq_len - n);
+        if (k <= 0) {
+            return 0;
+        }
+
+        // feed the draft model the tokens it has not seen, the last one gives the
+        // distribution of the first guess
+        float[] logits = TransformerUtils.prefill(draft, s.draft_prefill, s.draft,
+                Arrays.copyOfRange(tokens, s.draft_pos, n), n - s.draft_pos, s.draft_pos);
+        s.draft_pos = n;
+
+        // sample the guesses from the draft model, with the settings of the sampler
+        for (int i = 0; i < k; i++) {
+            float[] q = s.q[i];
+            System.arraycopy(logits, 0, q, 0, vocab_size);
+            SamplingUtils.distribution(session.sampler, q);
+            int next = SamplingUtils.sample_mult(q, vocab_size, session.sampler.random_f32());
+            s.tokens[i + 1] = next;
+            if (i + 1 < k) {
+                logits = TransformerUtils.forward(draft, s.draft, next, n + i);
+                s.draft_pos = n + i + 1;
+            }
+        }
+        return k;
+    }
+
+    @Override
+    public void accept(Session session, int n) {
+        // the last accepted token is not in the kv cache yet, and rejected guesses are
+        // overwritten as the draft catches up
+        Speculation s = session.speculation;
+        s.draft_pos = Math.min(s.draft_pos, n - 1);
+    }
+}
@@ -0,0 +1,25 @@
+package example.micronaut.service;
+
+import example.micronaut.model.Config;
+import example.micronaut.model.Session;
+import example.micronaut.model.Speculation;
+
+// ----------------------------------------------------------------------------
+// source of the tokens that speculative decoding guesses ahead, checked afterwards by
+// the target model in a single forward pass
+public interface Drafter {
+
+    // the speculation state of session for up to k tokens per step of the target model
+    // with the given config, created on first use
+    Speculation speculation(Session session, Config config, int k);
+
+    // guess up to k tokens to follow tokens[0..n), whose last token sits at position
+    // n - 1 and has not been through the target model yet. the guesses go to
+    // speculation.tokens[1..] and their draft distributions to speculation.q, left null
+    // for guesses made with certainty. returns the number of guesses
+    int propose(Session session, int[] tokens, int n, int k);
+
+    // the target model accepted the sequence up to length n, the tokens guessed past
+    // it were rejected
+    void accept(Session session, int n);
+}
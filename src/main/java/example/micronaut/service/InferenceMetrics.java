@@ -0,0 +1,161 @@
+package example.micronaut.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import example.micronaut.model.KVBlockPool;
+import io.micrometer.core.instrument.BaseUnits;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+// ----------------------------------------------------------------------------
+// micrometer meters of the inference, published by micronaut's /metrics endpoint and by
+// /prometheus. latencies are timers with percentile histograms, so that they aggregate
+// across instances. per request:
+//   llama2.time_to_first_token  from the arrival of the request to its first generated
+//                               token, waiting for a session and the prefill included
+//   llama2.prefill              prefill of the prompt (cached prefixes make it shorter)
+//   llama2.decode               generation after the prefill
+//   llama2.decode.throughput    generated tokens per second of the decode
+// per token:
+//   llama2.inter_token_latency  between two generated tokens of a request
+//   llama2.tokens.prompt / llama2.tokens.generated  counters
+// and gauges of the load: active sessions, requests waiting for one, kv cache in use
+public class InferenceMetrics {
+
+    private final MeterRegistry registry;
+    private final Timer time_to_first_token;
+    private final Timer prefill;
+    private final Timer decode;
+    private final Timer inter_token_latency;
+    private final DistributionSummary throughput;
+    private final Counter prompt_tokens;
+    private final Counter generated_tokens;
+    private final AtomicInteger pending = new AtomicInteger(); // requests waiting for a session
+
+    public InferenceMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.time_to_first_token = Timer.builder("llama2.time_to_first_token")
+                .description("Time from the arrival of a request to its first generated token")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.prefill = Timer.builder("llama2.prefill")
+                .description("Prefill of the prompt of a request")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.decode = Timer.builder("llama2.decode")
+                .description("Generation of the tokens of a request after its prefill")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.inter_token_latency = Timer.builder("llama2.inter_token_latency")
+                .description("Time between two generated tokens of a request")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.throughput = DistributionSummary.builder("llama2.decode.throughput")
+                .description("Generated tokens per second of the decode of a request")
+                .baseUnit("tokens/s")
+                .register(registry);
+        this.prompt_tokens = Counter.builder("llama2.tokens.prompt")
+                .description("Prompt tokens prefilled")
+                .baseUnit("tokens")
+                .register(registry);
+        this.generated_tokens = Counter.builder("llama2.tokens.generated")
+                .description("Tokens generated")
+                .baseUnit("tokens")
+                .register(registry);
+        Gauge.builder("llama2.requests.pending", pending, AtomicInteger::get)
+                .description("Requests waiting for a free session")
+                .register(registry);
+    }
+
+    public void gauges(SessionPool sessionPool, KVBlockPool kvBlockPool, PrefixCache prefixCache,
+            ChatSessions chatSessions) {
+        // gauges read their object when scraped, and only hold it weakly
+        Gauge.builder("llama2.sessions.active", sessionPool, SessionPool::active_sessions)
+                .description("Sessions serving a request")
+                .register(registry);
+        Gauge.builder("llama2.sessions.max", sessionPool, SessionPool::max_sessions)
+                .description("Requests served concurrently at most")
+                .register(registry);
+        Gauge.builder("llama2.kv_cache.used", kvBlockPool, pool -> (double) pool.used_blocks() * pool.block_bytes)
+                .description("Memory of the kv cache blocks in use, by sessions and caches")
+                .baseUnit(BaseUnits.BYTES)
+                .register(registry);
+        Gauge.builder("llama2.kv_cache.max", kvBlockPool, pool -> (double) pool.max_blocks * pool.block_bytes)
+                .description("Memory budget of the kv cache")
+                .baseUnit(BaseUnits.BYTES)
+                .register(registry);
+        if (prefixCache != null) {
+            Gauge.builder("llama2.prefix_cache.blocks", prefixCache, PrefixCache::cached_blocks)
+                    .description("Kv cache blocks held by the prefix cache")
+                    .register(registry);
+        }
+        if (chatSessions != null) {
+            Gauge.builder("llama2.chat.conversations", chatSessions, ChatSessions::conversations)
+                    .description("Idle chat conversations kept for their next turn")
+                    .register(registry);
+            Gauge.builder("llama2.chat.blocks", chatSessions, ChatSessions::parked_blocks)
+                    .description("Kv cache blocks held by idle chat conversations")
+                    .register(registry);
+        }
+    }
+
+    public void waiting() {
+        pending.incrementAndGet();
+    }
+
+    public void served() {
+        pending.decrementAndGet();
+    }
+
+    public Request request(Limits limits) {
+        return new Request(limits);
+    }
+
+    // the clock of one request: prefilled() once the logits of the prompt are known, token()
+    // for each generated token and finish() when the generation ends
+    public final class Request {
+
+        private final Limits limits;
+        private long decode_start; // System.nanoTime() at the end of the prefill
+        private long last; // System.nanoTime() of the last generated token
+        private int generated;
+
+        private Request(Limits limits) {
+            this.limits = limits;
+        }
+
+        public void prefilled(long start, int num_tokens) {
+            // start: System.nanoTime() before the prefill of num_tokens prompt tokens
+            long now = System.nanoTime();
+            prefill.record(now - start, TimeUnit.NANOSECONDS);
+            prompt_tokens.increment(num_tokens);
+            decode_start = now;
+            last = now;
+        }
+
+        public void token() {
+            long now = System.nanoTime();
+            if (generated == 0) {
+                time_to_first_token.record(limits.elapsed_nanos(), TimeUnit.NANOSECONDS);
+            } else {
+                inter_token_latency.record(now - last, TimeUnit.NANOSECONDS);
+            }
+            generated_tokens.increment();
+            generated++;
+            last = now;
+        }
+
+        public void finish() {
+            if (generated == 0) {
+                return;
+            }
+            long nanos = System.nanoTime() - decode_start;
+            decode.record(nanos, TimeUnit.NANOSECONDS);
+            throughput.record(generated * 1e9 / Math.max(1, nanos));
+        }
+    }
+}
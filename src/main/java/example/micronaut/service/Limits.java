@@ -0,0 +1,94 @@
+package example.micronaut.service;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// ----------------------------------------------------------------------------
+// stopping conditions of one request besides steps: a number of generated tokens, a
+// server-side deadline and stop sequences. the generated text passes through text(),
+// which holds back a tail that may still grow into a stop sequence and cuts the output
+// right before the first one completed. stop sequences are not part of the output
+public class Limits {
+
+    public final int max_tokens; // generated tokens at most, 0: up to steps
+    public final List<String> stop; // stop sequences, empty: none
+    private final long start; // System.nanoTime() at the creation of the request
+    private final long timeout_nanos; // 0: no deadline
+
+    private final StringBuilder held = new StringBuilder(); // text not emitted yet
+    private boolean stopped; // a stop sequence was generated
+
+    public Limits(int max_tokens, List<String> stop, long timeout_millis) {
+        this.max_tokens = Math.max(0, max_tokens);
+        this.stop = stop == null ? List.of() : stop.stream().filter(s -> !s.isEmpty()).toList();
+        this.start = System.nanoTime();
+        this.timeout_nanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeout_millis));
+    }
+
+    public long elapsed_nanos() {
+        // time since the creation of the request
+        return System.nanoTime() - start;
+    }
+
+    public boolean expired() {
+        return timeout_nanos > 0 && elapsed_nanos() > timeout_nanos;
+    }
+
+    public int steps(int steps, int num_prompt_tokens) {
+        // the steps of a sequence starting with num_prompt_tokens, within max_tokens
+        if (max_tokens == 0) {
+            return steps;
+        }
+        return (int) Math.min(steps, (long) num_prompt_tokens - 1 + max_tokens);
+    }
+
+    public boolean stopped() {
+        return stopped;
+    }
+
+    public String text(String piece) {
+        // the part of the output so far, up to piece, that can be emitted now
+        if (stopped) {
+            return "";
+        }
+        if (stop.isEmpty()) {
+            return piece;
+        }
+        held.append(piece);
+        // cut before the earliest complete stop sequence. the text emitted before could
+        // not start one, so a match lies within held
+        int cut = -1;
+        for (String s : stop) {
+            int i = held.indexOf(s);
+            if (i >= 0 && (cut < 0 || i < cut)) {
+                cut = i;
+            }
+        }
+        if (cut >= 0) {
+            stopped = true;
+            String out = held.substring(0, cut);
+            held.setLength(0);
+            return out;
+        }
+        // hold back the longest tail that is the start of a stop sequence
+        int keep = 0;
+        for (String s : stop) {
+            for (int len = Math.min(s.length() - 1, held.length()); len > keep; len--) {
+                if (held.indexOf(s.substring(0, len), held.length() - len) >= 0) {
+                    keep = len;
+                    break;
+                }
+            }
+        }
+        String out = held.substring(0, held.length() - keep);
+        held.delete(0, held.length() - keep);
+        return out;
+    }
+
+    public String flush() {
+        // the end of the output: the held back tail did not become a stop sequence
+        String out = held.toString();
+        held.setLength(0);
+        return out;
+    }
+}
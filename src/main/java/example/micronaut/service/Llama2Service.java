@@ -1,20 +1,42 @@
 package example.micronaut.service;
 
-import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-import example.micronaut.model.Sampler;
+import example.micronaut.model.Detokenizer;
+import example.micronaut.model.Session;
 import example.micronaut.model.Tokenizer;
 import example.micronaut.model.Transformer;
 import example.micronaut.utils.TransformerUtils;
 import example.micronaut.utils.SamplingUtils;
 import example.micronaut.utils.TokenUtils;
 
+import jakarta.annotation.PreDestroy;
 import jakarta.inject.Singleton;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
 @Singleton
 public class Llama2Service {
 
+    // the blocking generation loops run on virtual threads, one per request, instead of
+    // the event loop that subscribed. the kernels they call run on the ComputePool
+    private final Scheduler sessions = Schedulers.fromExecutorService(
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("llama2-session-", 0).factory()),
+            "llama2-session");
+
+    // how often a request waiting for a session checks for cancellation and its deadline
+    private static final long ACQUIRE_SLICE_MILLIS = 50;
+
+    @PreDestroy
+    public void close() {
+        sessions.dispose();
+    }
+
     // ----------------------------------------------------------------------------
     // utilities: time / rng
     public long time_in_ms() {
@@ -22,68 +44,303 @@ public class Llama2Service {
         return System.nanoTime() / 1_000_000;
     }
 
+    private Session acquire(SessionPool sessionPool, InferenceMetrics metrics, Limits limits, FluxSink<?> emitter)
+            throws InterruptedException, TimeoutException {
+        // wait for a free session in short slices, so that a request which is cancelled or
+        // runs out of time while queued never takes one. null when cancelled
+        metrics.waiting();
+        try {
+            while (!emitter.isCancelled()) {
+                Session session = sessionPool.acquire(ACQUIRE_SLICE_MILLIS, TimeUnit.MILLISECONDS);
+                if (session != null) {
+                    return session;
+                }
+                if (limits.expired()) {
+                    throw new TimeoutException("no session became free before the deadline");
+                }
+            }
+            return null;
+        } finally {
+            metrics.served();
+        }
+    }
+
+    private boolean proceed(Limits limits, FluxSink<?> emitter) {
+        // checked between forward passes: stop as soon as the client is gone or the
+        // deadline has passed, so the session goes back to the pool
+        return !emitter.isCancelled() && !limits.expired();
+    }
+
+    private float[] forward(Transformer transformer, BatchScheduler batchScheduler, Session session, int token,
+            int pos) {
+        // with continuous batching the step is fused with the steps of the other sessions
+        if (batchScheduler != null) {
+            return batchScheduler.forward(session.state, token, pos);
+        }
+        return TransformerUtils.forward(transformer, session.state, token, pos);
+    }
+
+    private void pause(BatchScheduler batchScheduler) {
+        // a prefill runs outside of the batches, their steps do not wait for it
+        if (batchScheduler != null) {
+            batchScheduler.pause();
+        }
+    }
+
+    private void resume(BatchScheduler batchScheduler) {
+        if (batchScheduler != null) {
+            batchScheduler.resume();
+        }
+    }
+
+    private float[] prefill(Transformer transformer, PrefixCache prefixCache, Session session, int[] tokens, int n) {
+        // prefill the first n prompt tokens from position 0 and return the logits of the
+        // last one. the longest prefix already in the prefix cache is attached instead of
+        // being computed again, and the blocks computed here are cached for later prompts
+        if (prefixCache == null) {
+            return TransformerUtils.prefill(transformer, session.prefill, session.state, tokens, n, 0);
+        }
+        int cached = prefixCache.attach(session.state.kv_cache, tokens, n);
+        float[] logits = TransformerUtils.prefill(transformer, session.prefill, session.state,
+                Arrays.copyOfRange(tokens, cached, n), n - cached, cached);
+        prefixCache.insert(session.state.kv_cache, tokens, n);
+        return logits;
+    }
+
+    private boolean emit(DemandGate demand, FluxSink<? super String> emitter, String piece) {
+        // wait until the subscriber wants more, then send the piece. skip the empty pieces
+        // of tokens holding only part of a character. false once the subscriber cancelled,
+        // or once the stream timed out waiting for it
+        if (piece.isEmpty()) {
+            return !emitter.isCancelled();
+        }
+        if (!demand.await()) {
+            return false;
+        }
+        emitter.next(piece);
+        return true;
+    }
+
     // ----------------------------------------------------------------------------
     // generation loop
-    public Flux<String> generate(Transformer transformer, Tokenizer tokenizer, Sampler sampler, String prompt, int steps) {
-        return Flux.create(emitter -> {
-
-            // encode the (string) prompt into tokens sequence
-            int num_prompt_tokens = 0; // the total number of prompt tokens
-            int[] prompt_tokens = new int[prompt.length() * 2 + 3]; // +3 for '\0', ?BOS, ?EOS
-            num_prompt_tokens = TokenUtils.encode(tokenizer, prompt, true, false, prompt_tokens);
-            if (num_prompt_tokens < 1) {
-                emitter.next("something is wrong, expected at least 1 prompt token");
-                emitter.complete();
+    public Flux<String> generate(Transformer transformer, Tokenizer tokenizer, SessionPool sessionPool,
+            BatchScheduler batchScheduler, PrefixCache prefixCache, SpeculativeDecoder speculativeDecoder,
+            InferenceMetrics metrics, String prompt, int steps, Limits limits) {
+        // speculative steps run their own multi-token passes, outside of the batches
+        BatchScheduler scheduler = speculativeDecoder == null ? batchScheduler : null;
+        return Flux.<String>create(emitter -> {
+            DemandGate demand = new DemandGate(emitter, limits, scheduler);
+            // take a private RunState and Sampler for this request
+            Session session;
+            try {
+                session = acquire(sessionPool, metrics, limits, emitter);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                emitter.error(e);
+                return;
+            } catch (TimeoutException e) {
+                emitter.error(e);
                 return;
             }
-
-            // start the main loop
-            long start = 0; // used to time our code, only initialized after first iteration
-            int next; // will store the next token in the sequence
-            int token = prompt_tokens[0]; // kick off with the first token in the prompt
-            int pos = 0; // position in the sequence
-            while (pos < steps) {
-                // forward the transformer to get logits for the next token
-                float[] logits = TransformerUtils.forward(transformer, token, pos);
-
-                // advance the state machine
-                if (pos < num_prompt_tokens - 1) {
-                    // if we are still processing the input prompt, force the next prompt token
-                    next = prompt_tokens[pos + 1];
+            if (session == null) {
+                return; // cancelled while waiting
+            }
+            if (scheduler != null) {
+                scheduler.join();
+            }
+            try {
+                if (speculativeDecoder != null) {
+                    generate(transformer, tokenizer, session, prefixCache, speculativeDecoder, prompt, steps, limits,
+                            metrics.request(limits), demand, emitter);
                 } else {
-                    // otherwise sample the next token from the logits
-                    next = SamplingUtils.sample(sampler, logits);
+                    generate(transformer, tokenizer, session, scheduler, prefixCache, prompt, steps, limits,
+                            metrics.request(limits), demand, emitter);
                 }
-                pos++;
-
-                // data-dependent terminating condition: the BOS (=1) token delimits sequences
-                if (next == 1) {
-                    break;
+            } finally {
+                if (scheduler != null) {
+                    scheduler.leave();
                 }
+                sessionPool.release(session);
+            }
+        }).subscribeOn(sessions);
+    }
 
-                // print the token as string, decode it with the Tokenizer object
-                String piece = TokenUtils.decode(tokenizer, token, next);
-                emitter.next(piece);
+    private void generate(Transformer transformer, Tokenizer tokenizer, Session session, BatchScheduler batchScheduler,
+            PrefixCache prefixCache, String prompt, int steps, Limits limits, InferenceMetrics.Request timing,
+            DemandGate demand, FluxSink<String> emitter) {
+        // encode the (string) prompt into tokens sequence
+        int num_prompt_tokens = 0; // the total number of prompt tokens
+        int[] prompt_tokens = new int[prompt.length() * 2 + 3]; // +3 for '\0', ?BOS, ?EOS
+        num_prompt_tokens = TokenUtils.encode(tokenizer, prompt, true, false, prompt_tokens);
+        if (num_prompt_tokens < 1) {
+            emitter.next("something is wrong, expected at least 1 prompt token");
+            emitter.complete();
+            return;
+        }
 
-                token = next;
+        steps = limits.steps(steps, num_prompt_tokens);
 
-                // init the timer here because the first iteration can be slower
-                if (start == 0) {
-                    start = time_in_ms();
-                }
+        // prefill: the prompt is known up front, so feed it through the transformer in
+        // batched chunks and only compute the logits of its last token
+        int num_prefill = Math.min(num_prompt_tokens, steps);
+        long prefill_start = System.nanoTime();
+        float[] logits;
+        pause(batchScheduler);
+        try {
+            logits = prefill(transformer, prefixCache, session, prompt_tokens, num_prefill);
+        } finally {
+            resume(batchScheduler);
+        }
+        timing.prefilled(prefill_start, num_prefill);
+
+        // echo the prompt, as the token by token loop used to. pieces are only emitted
+        // once they hold whole utf-8 characters
+        Detokenizer detokenizer = new Detokenizer(tokenizer);
+        for (int i = 0; i < num_prefill - 1; i++) {
+            if (!emit(demand, emitter, detokenizer.next(prompt_tokens[i], prompt_tokens[i + 1]))) {
+                return; // cancelled or timed out
+            }
+        }
+
+        // start the main loop
+        long start = time_in_ms(); // used to time the decoding, the prefill is excluded
+        int next; // will store the next token in the sequence
+        int pos = num_prefill - 1; // position in the sequence, the prefill produced its logits
+        int token = prompt_tokens[pos]; // kick off with the last token in the prompt
+        while (pos < steps) {
+            if (!proceed(limits, emitter)) {
+                break;
+            }
+
+            // forward the transformer to get logits for the next token
+            if (pos >= num_prefill) {
+                logits = forward(transformer, batchScheduler, session, token, pos);
             }
 
-            emitter.next("\n");
+            // advance the state machine
+            if (pos < num_prompt_tokens - 1) {
+                // the prompt was cut short by steps, force the next prompt token
+                next = prompt_tokens[pos + 1];
+            } else {
+                // otherwise sample the next token from the logits
+                next = SamplingUtils.sample(session.sampler, logits);
+            }
+            pos++;
+
+            // data-dependent terminating condition: the BOS (=1) token delimits sequences
+            if (next == 1) {
+                break;
+            }
 
-            // report achieved tok/s (pos-1 because the timer starts after first iteration)
-            if (pos > 1) {
-                long end = time_in_ms();
-                double tokensPerSecond = (pos - 1) / (double) (end - start) * 1000;
-                emitter.next("\nachieved tok/s: " + tokensPerSecond + "\n");
+            if (pos >= num_prompt_tokens) {
+                timing.token();
             }
 
+            // print the token as string, decode it with the Tokenizer object. the prompt
+            // echo is not checked for stop sequences
+            String piece = detokenizer.next(token, next);
+            if (!emit(demand, emitter, pos < num_prompt_tokens ? piece : limits.text(piece))) {
+                return; // cancelled or timed out
+            }
+            if (limits.stopped()) {
+                break;
+            }
+
+            token = next;
+        }
+        timing.finish();
+        if (emitter.isCancelled()) {
+            return;
+        }
+
+        if (!emit(demand, emitter, limits.text(detokenizer.flush()) + limits.flush())) {
+            return;
+        }
+        emitter.next("\n");
+
+        // report achieved tok/s (forward passes run after the prefill)
+        if (pos > num_prefill) {
+            long end = time_in_ms();
+            double tokensPerSecond = (pos - num_prefill) / (double) Math.max(1, end - start) * 1000;
+            emitter.next("\nachieved tok/s: " + tokensPerSecond + "\n");
+        }
+
+        emitter.complete();
+    }
+
+    private void generate(Transformer transformer, Tokenizer tokenizer, Session session, PrefixCache prefixCache,
+            SpeculativeDecoder speculativeDecoder, String prompt, int steps, Limits limits,
+            InferenceMetrics.Request timing, DemandGate demand, FluxSink<String> emitter) {
+        // same as above, but each step guesses a few tokens ahead and verifies them in one
+        // forward pass, so it can yield several tokens
+        int[] prompt_tokens = new int[prompt.length() * 2 + 3]; // +3 for '\0', ?BOS, ?EOS
+        int num_prompt_tokens = TokenUtils.encode(tokenizer, prompt, true, false, prompt_tokens);
+        if (num_prompt_tokens < 1) {
+            emitter.next("something is wrong, expected at least 1 prompt token");
             emitter.complete();
-        });
+            return;
+        }
+        num_prompt_tokens = Math.min(num_prompt_tokens, steps); // cut short by steps
+        steps = limits.steps(steps, num_prompt_tokens);
+
+        // the sequence so far, its last token is fed by the first step
+        int[] tokens = Arrays.copyOf(prompt_tokens, Math.max(prompt_tokens.length, steps + 1));
+        int n = num_prompt_tokens;
+        long prefill_start = System.nanoTime();
+        prefill(transformer, prefixCache, session, tokens, n - 1);
+        timing.prefilled(prefill_start, n - 1);
+
+        Detokenizer detokenizer = new Detokenizer(tokenizer);
+        for (int i = 0; i < n - 1; i++) {
+            if (!emit(demand, emitter, detokenizer.next(tokens[i], tokens[i + 1]))) {
+                return; // cancelled or timed out
+            }
+        }
+
+        long start = time_in_ms();
+        int[] out = new int[speculativeDecoder.k + 1];
+        int num_steps = 0; // forward passes of the target model
+        boolean done = false;
+        while (!done && n - 1 < steps && proceed(limits, emitter)) {
+            int produced = speculativeDecoder.step(session, tokens, n, steps - (n - 1), out);
+            num_steps++;
+            for (int i = 0; i < produced; i++) {
+                // the BOS (=1) token delimits sequences
+                if (out[i] == 1) {
+                    done = true;
+                    break;
+                }
+                timing.token(); // the tokens of a step arrive together
+                if (!emit(demand, emitter, limits.text(detokenizer.next(tokens[n - 1], out[i])))) {
+                    return; // cancelled or timed out
+                }
+                tokens[n++] = out[i];
+                if (limits.stopped()) {
+                    done = true;
+                    break;
+                }
+            }
+        }
+        timing.finish();
+        if (emitter.isCancelled()) {
+            return;
+        }
+
+        if (!emit(demand, emitter, limits.text(detokenizer.flush()) + limits.flush())) {
+            return;
+        }
+        emitter.next("\n");
+
+        // report achieved tok/s, and how many tokens a forward pass yielded on average
+        int generated = n - num_prompt_tokens;
+        if (generated > 0) {
+            long end = time_in_ms();
+            double tokensPerSecond = generated / (double) Math.max(1, end - start) * 1000;
+            emitter.next("\nachieved tok/s: " + tokensPerSecond + ", tokens per forward pass: "
+                    + generated / (double) num_steps + "\n");
+        }
+
+        emitter.complete();
     }
 
     // ----------------------------------------------------------------------------
@@ -91,91 +348,176 @@ public class Llama2Service {
     // I manually inspected the tokens for a few chat conversations compared to
     // python reference and that seemed ok, but this was not thoroughly tested and
     // is not safely implemented, it's more a proof of concept atm.
-    public Flux<Object> chat(Transformer transformer, Tokenizer tokenizer, Sampler sampler,
-            String cli_user_prompt, String cli_system_prompt, int steps) {
-        return Flux.create(emitter -> {
-
-            // buffers for reading the system prompt and user prompt from stdin
-            String system_prompt = null;
-            String user_prompt = null;
-            String rendered_prompt = null;
-            int num_prompt_tokens = 0;
-            int[] prompt_tokens = new int[512];
-            int user_idx = 0;
-
-            // start the main loop
-            boolean user_turn = true; // user starts
-            int next = 0; // will store the next token in the sequence
-            int token = 0; // stores the current token to feed into the transformer
-            int pos = 0; // position in the sequence
-            while (pos < steps) {
-
-                // when it is the user's turn to contribute tokens to the dialog...
-                if (user_turn) {
-                    // get the (optional) system prompt at position 0
-                    if (pos == 0) {
-                        // at position 0, the user can also contribute a system prompt
-                        if (cli_system_prompt == null) {
-                            // system prompt was not passed in, attempt to get it from stdin
-                            system_prompt = SamplingUtils.read_stdin("Enter system prompt (optional): ");
-                        } else {
-                            // system prompt was passed in, use it
-                            system_prompt = cli_system_prompt;
-                        }
-                    }
-                    // get the user prompt
-                    if (pos == 0 && cli_user_prompt != null) {
-                        // user prompt for position 0 was passed in, use it
-                        user_prompt = cli_user_prompt;
-                    } else {
-                        // otherwise get user prompt from stdin
-                        user_prompt = SamplingUtils.read_stdin("User: ");
-                    }
-                    // render user/system prompts into the Llama 2 Chat schema
-                    if (pos == 0 && system_prompt.isEmpty()) {
-                        String system_template = "[INST] <<SYS>>\n%s\n<</SYS>>\n\n%s [/INST]";
-                        rendered_prompt = system_template.formatted(system_prompt, user_prompt);
-                    } else {
-                        String user_template = "[INST] %s [/INST]";
-                        rendered_prompt = user_template.formatted(user_prompt);
-                    }
-                    // encode the rendered prompt into tokens
-                    num_prompt_tokens = TokenUtils.encode(tokenizer, rendered_prompt, true, false, prompt_tokens);
-                    user_idx = 0; // reset the user index
-                    user_turn = false;
-                    emitter.next("Assistant: ");
+    // a request is one turn of the dialog. with a session_id the conversation is kept
+    // in chatSessions, so the next turn only forwards its own tokens
+    public Flux<Object> chat(Transformer transformer, Tokenizer tokenizer, SessionPool sessionPool,
+            BatchScheduler batchScheduler, PrefixCache prefixCache, ChatSessions chatSessions,
+            InferenceMetrics metrics, String session_id, String user_prompt, String system_prompt, int steps,
+            Limits limits) {
+        return Flux.<Object>create(emitter -> {
+            DemandGate demand = new DemandGate(emitter, limits, batchScheduler);
+            // continue the conversation of session_id, or hold a one-off one
+            boolean kept = session_id != null && chatSessions != null;
+            ChatSessions.Conversation conversation;
+            try {
+                conversation = kept ? chatSessions.take(session_id) : new ChatSessions.Conversation();
+            } catch (IllegalStateException e) {
+                emitter.error(e);
+                return;
+            }
+            try {
+                chat(transformer, tokenizer, sessionPool, batchScheduler, prefixCache, metrics, conversation, kept,
+                        user_prompt, system_prompt, steps, limits, demand, emitter);
+            } finally {
+                if (kept && conversation.pos < steps) {
+                    chatSessions.park(session_id, conversation);
+                } else if (kept) {
+                    chatSessions.end(session_id, conversation); // full, the next turn starts over
                 }
+            }
+        }).subscribeOn(sessions);
+    }
 
-                // determine the token to pass into the transformer next
-                if (user_idx < num_prompt_tokens) {
-                    // if we are still processing the input prompt, force the next prompt token
-                    token = prompt_tokens[user_idx++];
-                } else {
-                    // otherwise use the next token sampled from previous turn
-                    token = next;
-                }
-                // EOS (=2) token ends the Assistant turn
-                if (token == 2) {
-                    user_turn = true;
-                }
+    private void chat(Transformer transformer, Tokenizer tokenizer, SessionPool sessionPool,
+            BatchScheduler batchScheduler, PrefixCache prefixCache, InferenceMetrics metrics,
+            ChatSessions.Conversation conversation, boolean kept, String user_prompt, String system_prompt, int steps,
+            Limits limits, DemandGate demand, FluxSink<Object> emitter) {
+        // take a private RunState and Sampler for this request
+        Session session;
+        try {
+            session = acquire(sessionPool, metrics, limits, emitter);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            emitter.error(e);
+            return;
+        } catch (TimeoutException e) {
+            emitter.error(e);
+            return;
+        }
+        if (session == null) {
+            return; // cancelled while waiting
+        }
+        if (batchScheduler != null) {
+            batchScheduler.join();
+        }
+        try {
+            // move the kv cache and the sampler state of the conversation into the session
+            session.state.kv_cache.attach(conversation.blocks);
+            conversation.blocks = new int[0];
+            if (conversation.rng_seed != 0) {
+                session.sampler.rng_seed = conversation.rng_seed;
+            }
+            turn(transformer, tokenizer, session, batchScheduler, prefixCache, conversation, user_prompt,
+                    system_prompt, steps, limits, metrics.request(limits), demand, emitter);
+        } finally {
+            if (batchScheduler != null) {
+                batchScheduler.leave();
+            }
+            // a kept conversation takes its kv cache back, the session returns to the pool
+            if (kept) {
+                conversation.blocks = session.state.kv_cache.detach();
+            }
+            sessionPool.release(session);
+        }
+    }
 
-                // forward the transformer to get logits for the next token
-                float[] logits = TransformerUtils.forward(transformer, token, pos);
-                next = SamplingUtils.sample(sampler, logits);
-                pos++;
+    private void turn(Transformer transformer, Tokenizer tokenizer, Session session, BatchScheduler batchScheduler,
+            PrefixCache prefixCache, ChatSessions.Conversation conversation, String user_prompt,
+            String system_prompt, int steps, Limits limits, InferenceMetrics.Request timing, DemandGate demand,
+            FluxSink<Object> emitter) {
+        // one turn: the user prompt, then the Assistant's answer. the conversation only
+        // moves on when the turn completes, a cancelled turn is dropped
+        int pos = conversation.pos; // position in the sequence
 
-                if (user_idx >= num_prompt_tokens && next != 2) {
-                    // the Assistant is responding, so print its output
-                    String piece = TokenUtils.decode(tokenizer, token, next);
-                    emitter.next(piece); // same as printf("%s", piece), but skips "unsafe"
-                    // bytes
-                }
-                if (next == 2) {
-                    emitter.next("\n");
-                }
+        // render user/system prompts into the Llama 2 Chat schema
+        String rendered_prompt;
+        if (pos == 0 && system_prompt != null && !system_prompt.isEmpty()) {
+            String system_template = "[INST] <<SYS>>\n%s\n<</SYS>>\n\n%s [/INST]";
+            rendered_prompt = system_template.formatted(system_prompt, user_prompt);
+        } else {
+            String user_template = "[INST] %s [/INST]";
+            rendered_prompt = user_template.formatted(user_prompt);
+        }
+        // encode the rendered prompt into tokens, after the end of the previous answer: its
+        // last token was sampled but not forwarded, and an answer cut short gets an EOS (=2)
+        int[] prompt_tokens = new int[rendered_prompt.length() * 2 + 5]; // +2 for the previous answer
+        int num_prompt_tokens = 0;
+        if (conversation.token >= 0) {
+            prompt_tokens[num_prompt_tokens++] = conversation.token;
+            if (conversation.token != 2) {
+                prompt_tokens[num_prompt_tokens++] = 2;
             }
+        }
+        int[] encoded = new int[rendered_prompt.length() * 2 + 3];
+        int num_encoded = TokenUtils.encode(tokenizer, rendered_prompt, true, false, encoded);
+        System.arraycopy(encoded, 0, prompt_tokens, num_prompt_tokens, num_encoded);
+        num_prompt_tokens += num_encoded;
+        if (pos + num_prompt_tokens > steps) {
+            conversation.pos = steps;
+            emitter.error(new IllegalStateException("the conversation reached the maximum of " + steps
+                    + " tokens, a new one starts with the next turn"));
+            return;
+        }
+        emitter.next("Assistant: ");
 
-            emitter.complete();
-        }).delayElements(Duration.ofMillis(1));
+        // prefill the whole prompt in batched chunks, only its last token needs logits.
+        // the first prompt starts with the system template, which is likely cached
+        float[] logits;
+        long prefill_start = System.nanoTime();
+        pause(batchScheduler);
+        try {
+            if (pos == 0) {
+                logits = prefill(transformer, prefixCache, session, prompt_tokens, num_prompt_tokens);
+            } else {
+                logits = TransformerUtils.prefill(transformer, session.prefill, session.state, prompt_tokens,
+                        num_prompt_tokens, pos);
+            }
+        } finally {
+            resume(batchScheduler);
+        }
+        timing.prefilled(prefill_start, num_prompt_tokens);
+        pos += num_prompt_tokens;
+
+        // start the main loop
+        Detokenizer detokenizer = new Detokenizer(tokenizer); // holds back partial utf-8 characters
+        int token = prompt_tokens[num_prompt_tokens - 1]; // the current token to feed into the transformer
+        int next; // will store the next token in the sequence
+        int generated = 0; // tokens of the Assistant so far
+        while (true) {
+            next = SamplingUtils.sample(session.sampler, logits);
+            // EOS (=2) token ends the Assistant turn
+            if (next == 2) {
+                break;
+            }
+            timing.token();
+
+            // the Assistant is responding, so print its output
+            if (!emit(demand, emitter, limits.text(detokenizer.next(token, next)))) {
+                return; // cancelled or timed out
+            }
+            generated++;
+            if (limits.stopped() || generated == limits.max_tokens || pos >= steps || !proceed(limits, emitter)) {
+                break;
+            }
+
+            // forward the transformer to get logits for the next token
+            token = next;
+            logits = forward(transformer, batchScheduler, session, token, pos);
+            pos++;
+        }
+        timing.finish();
+        if (emitter.isCancelled()) {
+            return;
+        }
+        if (!emit(demand, emitter, limits.text(detokenizer.flush()) + limits.flush())) {
+            return;
+        }
+        emitter.next("\n");
+
+        // the next turn continues from here
+        conversation.pos = pos;
+        conversation.token = next;
+        conversation.rng_seed = session.sampler.rng_seed;
+        emitter.complete();
     }
 }
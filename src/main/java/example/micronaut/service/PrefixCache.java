@@ -0,0 +1,148 @@
+package example.micronaut.service;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import example.micronaut.model.KVBlockPool;
+import example.micronaut.model.PagedKVCache;
+
+// ----------------------------------------------------------------------------
+// cache of the kv blocks of prompt prefixes, shared across sessions. a radix tree over
+// token ids whose edges are whole blocks: the node reached by the tokens of blocks
+// 0..b of a prompt holds the kv block b computed for them. a new session attaches the
+// blocks of its longest cached prefix and only prefills the rest of its prompt. the
+// tree holds one reference on each of its blocks and drops least recently used leaves
+// beyond max_blocks, or when the kv block pool runs out of memory
+public class PrefixCache {
+
+    private final KVBlockPool pool;
+    private final int max_blocks;
+    private final Node root = new Node(null, null, -1);
+    private int n_blocks;
+    private long clock; // logical time of the last attach or insert
+
+    private static final class Node {
+        final Node parent;
+        final Key key; // the tokens of the block
+        final int block; // pool block holding their keys and values
+        final Map<Key, Node> children = new HashMap<>();
+        long last_used;
+
+        Node(Node parent, Key key, int block) {
+            this.parent = parent;
+            this.key = key;
+            this.block = block;
+        }
+    }
+
+    private record Key(int[] tokens) {
+
+        static Key of(int[] tokens, int from, int length) {
+            return new Key(Arrays.copyOfRange(tokens, from, from + length));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key k && Arrays.equals(tokens, k.tokens);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(tokens);
+        }
+    }
+
+    public PrefixCache(KVBlockPool pool, int max_blocks) {
+        if (max_blocks < 1) {
+            throw new IllegalArgumentException("prefix cache must have at least 1 block, got " + max_blocks);
+        }
+        this.pool = pool;
+        this.max_blocks = max_blocks;
+        pool.addReclaimer(this::reclaim);
+    }
+
+    public synchronized int attach(PagedKVCache kv_cache, int[] tokens, int n) {
+        // share the blocks of the longest cached prefix of tokens[0..n) with the empty
+        // kv_cache and return its length. at most n - 1 tokens match, so that the last
+        // one is still forwarded to get its logits
+        if (kv_cache.n_blocks() != 0) {
+            // the shared blocks would not line up with the positions of their tokens
+            throw new IllegalStateException("a prefix can only be attached to an empty kv cache, this one holds "
+                    + kv_cache.n_blocks() + " blocks");
+        }
+        int block_size = pool.block_size;
+        long now = ++clock;
+        Node node = root;
+        int b = 0;
+        while (b < (n - 1) / block_size) {
+            Node child = node.children.get(Key.of(tokens, b * block_size, block_size));
+            if (child == null) {
+                break;
+            }
+            child.last_used = now;
+            kv_cache.share(child.block);
+            node = child;
+            b++;
+        }
+        return b * block_size;
+    }
+
+    public synchronized void insert(PagedKVCache kv_cache, int[] tokens, int n) {
+        // cache the full blocks of kv_cache, which holds the keys and values of tokens[0..n)
+        int block_size = pool.block_size;
+        long now = ++clock;
+        Node node = root;
+        for (int b = 0; b < Math.min(n / block_size, kv_cache.n_blocks()); b++) {
+            Key key = Key.of(tokens, b * block_size, block_size);
+            Node child = node.children.get(key);
+            if (child == null) {
+                if (n_blocks >= max_blocks && !evict(now, false)) {
+                    return;
+                }
+                child = new Node(node, key, kv_cache.block_id(b));
+                pool.retain(child.block);
+                node.children.put(key, child);
+                n_blocks++;
+            }
+            child.last_used = now;
+            node = child;
+        }
+    }
+
+    public synchronized boolean reclaim() {
+        // give one block back to the pool, if some cached block is not used by a session
+        return evict(clock + 1, true);
+    }
+
+    private boolean evict(long before, boolean free_only) {
+        // drop the least recently used leaf that was last used before the given time.
+        // with free_only, only leaves whose block is not shared with a session qualify
+        Node lru = null;
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            if (node.children.isEmpty()) {
+                if (node != root && node.last_used < before && (!free_only || pool.refs(node.block) == 1)
+                        && (lru == null || node.last_used < lru.last_used)) {
+                    lru = node;
+                }
+            } else {
+                node.children.values().forEach(stack::push);
+            }
+        }
+        if (lru == null) {
+            return false;
+        }
+        lru.parent.children.remove(lru.key);
+        pool.release(lru.block);
+        n_blocks--;
+        return true;
+    }
+
+    public synchronized int cached_blocks() {
+        return n_blocks;
+    }
+}
@@ -0,0 +1,54 @@
+package example.micronaut.service;
+
+import example.micronaut.model.Config;
+import example.micronaut.model.NGramIndex;
+import example.micronaut.model.Session;
+import example.micronaut.model.Speculation;
+
+// ----------------------------------------------------------------------------
+// prompt lookup: guesses without a draft model that the sequence repeats itself. the
+// last max_ngram tokens (or fewer, down to one) are looked up in an n-gram index of the
+// prompt and everything generated so far, and the tokens that followed their latest
+// earlier occurrence are proposed. this pays off when the output copies spans of the
+// prompt, as in summarization or editing, and costs a few rows of the verify pass when
+// it does not
+public class PromptLookup implements Drafter {
+
+    private final int max_ngram;
+
+    public PromptLookup(int max_ngram) {
+        if (max_ngram < 1) {
+            throw new IllegalArgumentException("n-gram size must be at least 1, got " + max_ngram);
+        }
+        this.max_ngram = max_ngram;
+    }
+
+    @Override
+    public Speculation speculation(Session session, Config config, int k) {
+        if (session.speculation == null) {
+            session.speculation = new Speculation(config, k, new NGramIndex(config.seq_len + 1, max_ngram));
+        }
+        return session.speculation;
+    }
+
+    @Override
+    public int propose(Session session, int[] tokens, int n, int k) {
+        Speculation s = session.speculation;
+        s.ngrams.update(tokens, n);
+        // the longest n-gram match is the most likely to continue alike
+        for (int size = max_ngram; size >= 1; size--) {
+            int i = s.ngrams.find(tokens, n, size);
+            if (i >= 0) {
+                int m = Math.min(k, n - i);
+                System.arraycopy(tokens, i, s.tokens, 1, m);
+                return m;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public void accept(Session session, int n) {
+        // the index only ever holds accepted tokens
+    }
+}
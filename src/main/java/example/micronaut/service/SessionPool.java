@@ -0,0 +1,91 @@
+package example.micronaut.service;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import example.micronaut.model.Config;
+import example.micronaut.model.KVBlockPool;
+import example.micronaut.model.Session;
+
+public class SessionPool {
+
+    private final Config config;
+    private final KVBlockPool kv_pool;
+    private final float temperature;
+    private final float topp;
+    private final int topk;
+    private final long rng_seed;
+    private final int max_sessions;
+    private final int prefill_chunk;
+
+    // bounds the number of sessions handed out at the same time
+    private final Semaphore permits;
+    // sessions that have been created and returned, ready for reuse
+    private final ConcurrentLinkedQueue<Session> idle = new ConcurrentLinkedQueue<>();
+    // number of sessions created so far, never exceeds max_sessions
+    private final AtomicInteger created = new AtomicInteger();
+
+    public SessionPool(Config config, KVBlockPool kv_pool, int max_sessions, int prefill_chunk, float temperature,
+            float topp, int topk, long rng_seed) {
+        if (max_sessions < 1) {
+            throw new IllegalArgumentException("session pool size must be at least 1, got " + max_sessions);
+        }
+        if (prefill_chunk < 1) {
+            throw new IllegalArgumentException("prefill chunk size must be at least 1, got " + prefill_chunk);
+        }
+        this.config = config;
+        this.kv_pool = kv_pool;
+        this.max_sessions = max_sessions;
+        this.prefill_chunk = prefill_chunk;
+        this.temperature = temperature;
+        this.topp = topp;
+        this.topk = topk;
+        this.rng_seed = rng_seed;
+        this.permits = new Semaphore(max_sessions, true);
+    }
+
+    public Session acquire() throws InterruptedException {
+        // wait for a free slot, then reuse an idle session or lazily create a new one,
+        // so the activations of unused slots are never allocated
+        permits.acquire();
+        return take();
+    }
+
+    public Session acquire(long timeout, TimeUnit unit) throws InterruptedException {
+        // same as acquire(), but gives up and returns null when no slot frees up in time
+        if (!permits.tryAcquire(timeout, unit)) {
+            return null;
+        }
+        return take();
+    }
+
+    private Session take() {
+        Session session = idle.poll();
+        if (session == null) {
+            int id = created.getAndIncrement();
+            // each session gets its own rng stream
+            session = new Session(id, config, kv_pool, prefill_chunk, temperature, topp, topk, rng_seed + id);
+        }
+        return session;
+    }
+
+    public void release(Session session) {
+        // the kv cache blocks go back to the shared pool, only the activations are kept
+        session.state.kv_cache.clear();
+        if (session.speculation != null) {
+            session.speculation.reset();
+        }
+        idle.offer(session);
+        permits.release();
+    }
+
+    public int max_sessions() {
+        return max_sessions;
+    }
+
+    public int active_sessions() {
+        return max_sessions - permits.availablePermits();
+    }
+}
@@ -0,0 +1,93 @@
+package example.micronaut.service;
+
+import example.micronaut.model.Sampler;
+import example.micronaut.model.Session;
+import example.micronaut.model.Speculation;
+import example.micronaut.model.Transformer;
+import example.micronaut.utils.SamplingUtils;
+import example.micronaut.utils.TransformerUtils;
+
+// ----------------------------------------------------------------------------
+// speculative decoding: a drafter guesses the next k tokens, the target model scores
+// all of them in one batched forward pass and keeps the longest prefix that its own
+// sampler agrees with. guess x with draft probability q(x) is accepted with probability
+// min(1, p(x) / q(x)) under the target distribution p, and the first rejected one is
+// replaced by a sample of max(0, p - q), normalized. the tokens come out distributed
+// exactly as if sampled from the target model one by one, and each step yields at
+// least one token. rejected guesses leave keys and values past the accepted sequence
+// in the kv cache, which are never attended to and get overwritten by the next steps
+public class SpeculativeDecoder {
+
+    private final Transformer transformer;
+    private final Drafter drafter;
+    public final int k; // max number of tokens guessed per step
+
+    public SpeculativeDecoder(Transformer transformer, Drafter drafter, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("speculation length must be at least 1, got " + k);
+        }
+        this.transformer = transformer;
+        this.drafter = drafter;
+        this.k = k;
+    }
+
+    public int step(Session session, int[] tokens, int n, int max_tokens, int[] out) {
+        // tokens[0..n) is the sequence so far, its last token at position n - 1 is not in
+        // the kv cache yet. writes the next 1..k + 1 tokens, at most max_tokens, to out
+        // and returns their number
+        Speculation s = drafter.speculation(session, transformer.config, k);
+        Sampler sampler = session.sampler;
+        int guesses = Math.min(k, Math.min(max_tokens - 1, transformer.config.seq_len - n));
+        guesses = Math.min(guesses, session.prefill.max_batch - 1);
+        int m = guesses > 0 ? drafter.propose(session, tokens, n, guesses) : 0;
+
+        // verify: the logits following the last token and each guess, in one pass
+        s.tokens[0] = tokens[n - 1];
+        TransformerUtils.verify(transformer, session.prefill, session.state, s.tokens, m + 1, n - 1, s.logits);
+
+        int produced = 0;
+        for (int i = 0; i <= m; i++) {
+            float[] p = s.logits[i];
+            SamplingUtils.distribution(sampler, p);
+            if (i == m) {
+                // every guess was accepted, the last row samples one more token
+                out[produced++] = SamplingUtils.sample_mult(p, sampler.vocab_size, sampler.random_f32());
+                break;
+            }
+            int guess = s.tokens[i + 1];
+            if (accepts(sampler, p, s.q[i], guess)) {
+                out[produced++] = guess;
+            } else {
+                out[produced++] = residual(sampler, p, s.q[i], guess);
+                break;
+            }
+        }
+        drafter.accept(session, n + produced);
+        return produced;
+    }
+
+    static boolean accepts(Sampler sampler, float[] p, float[] q, int guess) {
+        // accept guess with probability min(1, p(guess) / q(guess)), q being all on guess
+        // when null
+        float q_guess = q == null ? 1.0f : q[guess];
+        return sampler.random_f32() * q_guess < p[guess];
+    }
+
+    static int residual(Sampler sampler, float[] p, float[] q, int guess) {
+        // sample from max(0, p - q), q being all on guess when null. overwrites p
+        float sum = 0.0f;
+        if (q == null) {
+            sum = 1.0f - p[guess];
+            p[guess] = 0.0f;
+        } else {
+            for (int i = 0; i < sampler.vocab_size; i++) {
+                p[i] = Math.max(0.0f, p[i] - q[i]);
+                sum += p[i];
+            }
+        }
+        if (sum <= 0.0f) {
+            return guess; // p and q agree up to rounding errors
+        }
+        return SamplingUtils.sample_mult(p, sampler.vocab_size, sampler.random_f32() * sum);
+    }
+}
@@ -0,0 +1,248 @@
+package example.micronaut.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import example.micronaut.model.Config;
+import example.micronaut.model.Tensor;
+import example.micronaut.model.TensorType;
+import example.micronaut.model.Transformer;
+import example.micronaut.model.Weights;
+
+// ----------------------------------------------------------------------------
+// offline converter from a llama2.c checkpoint to a group quantized one.
+// with all matrices in Q8_0 it writes the layout of llama2.c's export.py --version 2:
+// 256 byte header (magic, version, config, shared classifier flag, group size),
+// float32 rmsnorm weights, then every matrix as int8 values followed by float32
+// group scales: token embeddings, wq, wk, wv, wo, w1, w2, w3, (wcls).
+// otherwise it writes version 3, which adds the TensorType id of each of these
+// matrices and of the rmsnorm weights to the header and stores each in its own
+// format, Q4_0 being packed nibbles followed by float16 group scales and F16/BF16
+// plain 16-bit values.
+//
+// usage: CheckpointConverter <input.bin> <output.bin> [type] [group_size] [matrix=type ...]
+// e.g.   CheckpointConverter stories110M.bin stories110M_q4.bin q4_0 64 wcls=f32
+// with q4_0 the token embeddings and the classifier default to q8_0. the rmsnorm
+// weights ("norms") stay in f32, or in the given type when it is f16 or bf16
+public class CheckpointConverter {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CheckpointConverter <input.bin> <output.bin> [type] [group_size] [matrix=type ...]");
+            System.exit(1);
+        }
+        TensorType type = args.length > 2 ? TensorType.valueOf(args[2].toUpperCase()) : TensorType.Q8_0;
+        int group_size = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        TensorType[] types = new TensorType[Weights.MATRICES.length];
+        Arrays.fill(types, type);
+        TensorType norms = type == TensorType.F16 || type == TensorType.BF16 ? type : TensorType.F32;
+        if (type == TensorType.Q4_0) {
+            // the embeddings and the classifier are the most sensitive to quantization
+            types[0] = TensorType.Q8_0;
+            types[types.length - 1] = TensorType.Q8_0;
+        }
+        for (int i = 4; i < args.length; i++) {
+            String[] override = args[i].split("=");
+            if (override.length == 2 && override[0].equals("norms")) {
+                norms = TensorType.valueOf(override[1].toUpperCase());
+                if (norms != TensorType.F32 && norms != TensorType.F16 && norms != TensorType.BF16) {
+                    System.err.println("rmsnorm weights cannot be quantized, got " + args[i]);
+                    System.exit(1);
+                }
+                continue;
+            }
+            int matrix = Arrays.asList(Weights.MATRICES).indexOf(override[0]);
+            if (override.length != 2 || matrix < 0) {
+                System.err.println("expected matrix=type with matrix one of " + Arrays.toString(Weights.MATRICES)
+                        + ", got " + args[i]);
+                System.exit(1);
+            }
+            types[matrix] = TensorType.valueOf(override[1].toUpperCase());
+        }
+        boolean all_q8 = Arrays.stream(types).allMatch(t -> t == TensorType.Q8_0) && norms == TensorType.F32;
+
+        Transformer transformer = new Transformer(args[0]);
+        Config p = transformer.config;
+        Weights w = transformer.weights;
+
+        // every row of every matrix must hold a whole number of groups
+        while (p.dim % group_size != 0 || p.hidden_dim % group_size != 0) {
+            group_size /= 2;
+        }
+        if (group_size < 2) {
+            System.err.println("dim " + p.dim + " and hidden_dim " + p.hidden_dim + " have no common even group size");
+            System.exit(1);
+        }
+        System.out.println("using group_size " + group_size + ", types " + Arrays.toString(types) + " and norms "
+                + norms);
+
+        try (FileChannel out = FileChannel.open(Paths.get(args[1]), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(Transformer.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(Transformer.MAGIC);
+            header.putInt(all_q8 ? Transformer.VERSION_Q8_0 : Transformer.VERSION_MIXED);
+            header.putInt(p.dim).putInt(p.hidden_dim).putInt(p.n_layers).putInt(p.n_heads).putInt(p.n_kv_heads)
+                    .putInt(p.vocab_size).putInt(p.seq_len);
+            header.put((byte) (p.shared_weights ? 1 : 0));
+            header.putInt(group_size);
+            if (!all_q8) {
+                for (TensorType t : types) {
+                    header.put((byte) t.id);
+                }
+                header.put((byte) norms.id);
+            }
+            header.clear(); // the rest of the header is zero padding
+            writeFully(out, header);
+
+            // the rmsnorm weights come first
+            for (Tensor weight : w.rms_att_weight) {
+                write(out, weight, p.dim, norms, group_size);
+            }
+            for (Tensor weight : w.rms_ffn_weight) {
+                write(out, weight, p.dim, norms, group_size);
+            }
+            write(out, w.rms_final_weight, p.dim, norms, group_size);
+
+            // then every matrix in its own format
+            write(out, w.token_embedding_table, (long) p.vocab_size * p.dim, types[0], group_size);
+            Tensor[][] layers = {w.wq, w.wk, w.wv, w.wo, w.w1, w.w2, w.w3};
+            long[] sizes = {
+                    (long) p.dim * p.n_heads * p.head_size,
+                    (long) p.dim * p.n_kv_heads * p.head_size,
+                    (long) p.dim * p.n_kv_heads * p.head_size,
+                    (long) p.n_heads * p.head_size * p.dim,
+                    (long) p.hidden_dim * p.dim,
+                    (long) p.dim * p.hidden_dim,
+                    (long) p.hidden_dim * p.dim};
+            for (int i = 0; i < layers.length; i++) {
+                for (Tensor tensor : layers[i]) {
+                    write(out, tensor, sizes[i], types[i + 1], group_size);
+                }
+            }
+            if (!p.shared_weights) {
+                write(out, w.wcls, (long) p.vocab_size * p.dim, types[types.length - 1], group_size);
+            }
+            System.out.println("wrote " + args[1] + " (" + out.size() + " bytes)");
+        }
+    }
+
+    static void write(FileChannel out, Tensor tensor, long numel, TensorType type, int group_size)
+            throws IOException {
+        switch (type) {
+            case F32 -> writeF32(out, tensor, numel);
+            case Q8_0 -> writeQ8(out, tensor, numel, group_size);
+            case Q4_0 -> writeQ4(out, tensor, numel, group_size);
+            case F16, BF16 -> writeHalf(out, tensor, numel, type == TensorType.BF16);
+        }
+    }
+
+    static void writeHalf(FileChannel out, Tensor tensor, long numel, boolean bf16) throws IOException {
+        float[] values = new float[(int) numel];
+        tensor.copyTo(0, values, 0, values.length);
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * Short.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        float err = 0.0f;
+        for (float v : values) {
+            short half;
+            float back;
+            if (bf16) {
+                // keep the upper 16 bits, rounding to nearest even
+                int bits = Float.floatToRawIntBits(v);
+                half = (short) ((bits + 0x7FFF + ((bits >>> 16) & 1)) >>> 16);
+                back = Float.intBitsToFloat((half & 0xFFFF) << 16);
+            } else {
+                half = Float.floatToFloat16(v);
+                back = Float.float16ToFloat(half);
+            }
+            buffer.putShort(half);
+            err = Math.max(err, Math.abs(back - v));
+        }
+        writeFully(out, buffer.flip());
+        System.out.println("converted " + numel + " values to " + (bf16 ? "bf16" : "f16") + ", max error " + err);
+    }
+
+    static void writeF32(FileChannel out, Tensor tensor, long numel) throws IOException {
+        float[] values = new float[(int) numel];
+        tensor.copyTo(0, values, 0, values.length);
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asFloatBuffer().put(values);
+        writeFully(out, buffer);
+    }
+
+    static void writeQ4(FileChannel out, Tensor tensor, long numel, int group_size) throws IOException {
+        // 4-bit quantization with an offset of 8: the value of largest magnitude maps to -8,
+        // which uses the whole [-8, 7] range. byte j of a group packs value j in its low
+        // nibble and value j + group_size / 2 in its high nibble. one float16 scale per group
+        int n_groups = (int) (numel / group_size);
+        int half = group_size / 2;
+        ByteBuffer q = ByteBuffer.allocate((int) (numel / 2));
+        ByteBuffer s = ByteBuffer.allocate(n_groups * Short.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        float[] group = new float[group_size];
+        float err = 0.0f;
+        for (int g = 0; g < n_groups; g++) {
+            tensor.copyTo(g * group_size, group, 0, group_size);
+            float max = 0.0f;
+            for (float v : group) {
+                if (Math.abs(v) > Math.abs(max)) {
+                    max = v;
+                }
+            }
+            // quantize with the scale as it will be read back, rounded to float16
+            short scale16 = Float.floatToFloat16(max / -8.0f);
+            float scale = Float.float16ToFloat(scale16);
+            s.putShort(scale16);
+            for (int j = 0; j < half; j++) {
+                int lo = quantize4(group[j], scale);
+                int hi = quantize4(group[j + half], scale);
+                q.put((byte) (lo | (hi << 4)));
+                err = Math.max(err, Math.abs((lo - 8) * scale - group[j]));
+                err = Math.max(err, Math.abs((hi - 8) * scale - group[j + half]));
+            }
+        }
+        writeFully(out, q.flip());
+        writeFully(out, s.flip());
+        System.out.println("quantized " + numel + " values to 4 bits, max error " + err);
+    }
+
+    static int quantize4(float v, float scale) {
+        int quant = scale == 0.0f ? 0 : Math.round(v / scale);
+        return Math.min(15, Math.max(0, quant + 8));
+    }
+
+    static void writeQ8(FileChannel out, Tensor tensor, long numel, int group_size) throws IOException {
+        // symmetric int8 quantization, one float32 scale per group: all the int8 values
+        // of the tensor first, then all of its scales
+        int n_groups = (int) (numel / group_size);
+        ByteBuffer q = ByteBuffer.allocate((int) numel);
+        ByteBuffer s = ByteBuffer.allocate(n_groups * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        float[] group = new float[group_size];
+        float err = 0.0f;
+        for (int g = 0; g < n_groups; g++) {
+            tensor.copyTo(g * group_size, group, 0, group_size);
+            float wmax = 0.0f;
+            for (float v : group) {
+                wmax = Math.max(wmax, Math.abs(v));
+            }
+            float scale = wmax / 127.0f;
+            s.putFloat(scale);
+            for (float v : group) {
+                byte quant = (byte) Math.round(scale == 0.0f ? 0.0f : v / scale);
+                q.put(quant);
+                err = Math.max(err, Math.abs(quant * scale - v));
+            }
+        }
+        writeFully(out, q.flip());
+        writeFully(out, s.flip());
+        System.out.println("quantized " + numel + " values, max error " + err);
+    }
+
+    static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package example.micronaut.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+// ----------------------------------------------------------------------------
+// writes a llama2.c checkpoint of random weights and a tokenizer.bin to go with it, so
+// that benchmarks and tests run without a downloaded model. the checkpoint has the legacy
+// float32 layout of llama2.c's export.py --version 0 (CheckpointConverter turns it into
+// the other formats): 7 int config header, a negative vocab_size when the classifier is
+// not shared, then token embeddings, rms_att, wq, wk, wv, wo, rms_ffn, w1, w2, w3,
+// rms_final, the unused freq_cis_real/imag and (wcls). matrices are gaussian with a std of
+// 1/sqrt(fan in) (dim for the embeddings, which double as the classifier when shared),
+// so that activations and logits stay of order one through the layers.
+// the tokenizer holds <unk>, <s>, </s>, the 256 byte fallback tokens, printable ascii,
+// then BPE merges learned from a built-in text (and random ones up to vocab_size), so
+// encoding english prompts goes through many merge rounds as with the llama tokenizer
+//
+// usage: SyntheticCheckpoint <output.bin> <tokenizer.bin> [dim hidden_dim n_layers n_heads n_kv_heads vocab_size seq_len [shared]] [seed]
+// e.g.   SyntheticCheckpoint stories15M_synthetic.bin tokenizer_synthetic.bin 288 768 6 6 6 32000 256 shared
+public class SyntheticCheckpoint {
+
+    // the shape of stories15M
+    public static final int[] STORIES15M = {288, 768, 6, 6, 6, 32000, 256};
+
+    public static final String TEXT = """
+            Once upon a time, there was a little girl named Lily. She loved to play outside in the park \
+            with her friends. One day, she saw a big red ball under a tree. She ran to the ball and \
+            picked it up. It was very shiny and round. Lily wanted to show the ball to her mom, so she \
+            went home. Her mom smiled and said, "What a nice ball! Where did you find it?" Lily told \
+            her mom about the tree in the park. Then they went back to the park together and played \
+            with the ball until the sun went down. They were happy and tired, and they had a lot of \
+            fun that day. The next day, Lily and her friend Tom went to the park again. They looked \
+            for more balls under the trees, but they only found leaves and sticks. Tom said, "Let's \
+            build a little house with the sticks!" So they did, and it was the best house in the park.""";
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: SyntheticCheckpoint <output.bin> <tokenizer.bin> "
+                    + "[dim hidden_dim n_layers n_heads n_kv_heads vocab_size seq_len [shared]] [seed]");
+            System.exit(1);
+        }
+        int[] shape = STORIES15M.clone();
+        boolean shared_weights = true;
+        long seed = 1;
+        int next = 2;
+        if (args.length >= 2 + shape.length) {
+            for (int i = 0; i < shape.length; i++) {
+                shape[i] = Integer.parseInt(args[next++]);
+            }
+            shared_weights = args.length > next && args[next].equals("shared");
+            if (shared_weights) {
+                next++;
+            }
+        }
+        if (args.length > next) {
+            seed = Long.parseLong(args[next]);
+        }
+        writeCheckpoint(args[0], shape[0], shape[1], shape[2], shape[3], shape[4], shape[5], shape[6],
+                shared_weights, seed);
+        writeTokenizer(args[1], shape[5], seed);
+        System.out.println("wrote " + args[0] + " and " + args[1]);
+    }
+
+    public static void writeCheckpoint(String path, int dim, int hidden_dim, int n_layers, int n_heads,
+                                       int n_kv_heads, int vocab_size, int seq_len, boolean shared_weights,
+                                       long seed) throws IOException {
+        if (dim % n_heads != 0 || n_heads % n_kv_heads != 0 || (dim / n_heads) % 2 != 0) {
+            throw new IllegalArgumentException("dim " + dim + " must split into n_heads " + n_heads
+                    + " of even size, and n_heads into n_kv_heads " + n_kv_heads);
+        }
+        int head_size = dim / n_heads;
+        int kv_dim = n_kv_heads * head_size;
+        Random rng = new Random(seed);
+        try (FileChannel out = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(7 * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(dim).putInt(hidden_dim).putInt(n_layers).putInt(n_heads).putInt(n_kv_heads)
+                    .putInt(shared_weights ? vocab_size : -vocab_size).putInt(seq_len);
+            CheckpointConverter.writeFully(out, header.flip());
+
+            writeGaussian(out, rng, (long) vocab_size * dim, 0.0f, fanIn(dim)); // token_embedding_table
+            writeGaussian(out, rng, (long) n_layers * dim, 1.0f, 0.1f); // rms_att_weight
+            writeGaussian(out, rng, (long) n_layers * dim * dim, 0.0f, fanIn(dim)); // wq
+            writeGaussian(out, rng, (long) n_layers * dim * kv_dim, 0.0f, fanIn(dim)); // wk
+            writeGaussian(out, rng, (long) n_layers * dim * kv_dim, 0.0f, fanIn(dim)); // wv
+            writeGaussian(out, rng, (long) n_layers * dim * dim, 0.0f, fanIn(dim)); // wo
+            writeGaussian(out, rng, (long) n_layers * dim, 1.0f, 0.1f); // rms_ffn_weight
+            writeGaussian(out, rng, (long) n_layers * hidden_dim * dim, 0.0f, fanIn(dim)); // w1
+            writeGaussian(out, rng, (long) n_layers * dim * hidden_dim, 0.0f, fanIn(hidden_dim)); // w2
+            writeGaussian(out, rng, (long) n_layers * hidden_dim * dim, 0.0f, fanIn(dim)); // w3
+            writeGaussian(out, rng, dim, 1.0f, 0.1f); // rms_final_weight
+            writeGaussian(out, rng, (long) seq_len * head_size, 0.0f, 0.0f); // freq_cis_real and freq_cis_imag
+            if (!shared_weights) {
+                writeGaussian(out, rng, (long) vocab_size * dim, 0.0f, fanIn(dim)); // wcls
+            }
+        }
+    }
+
+    static float fanIn(int n) {
+        return (float) (1.0 / Math.sqrt(n));
+    }
+
+    static void writeGaussian(FileChannel out, Random rng, long numel, float mean, float std) throws IOException {
+        // in chunks, the embeddings of large vocabularies do not fit in one buffer
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        for (long i = 0; i < numel; i++) {
+            buffer.putFloat(mean + std * (float) rng.nextGaussian());
+            if (!buffer.hasRemaining()) {
+                CheckpointConverter.writeFully(out, buffer.flip());
+                buffer.clear();
+            }
+        }
+        CheckpointConverter.writeFully(out, buffer.flip());
+    }
+
+    public static void writeTokenizer(String path, int vocab_size, long seed) throws IOException {
+        List<byte[]> tokens = vocab(vocab_size, seed);
+        int max_token_length = tokens.stream().mapToInt(t -> t.length).max().orElse(0);
+        int size = Integer.BYTES + tokens.stream().mapToInt(t -> Float.BYTES + Integer.BYTES + t.length).sum();
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(max_token_length);
+        for (int i = 0; i < tokens.size(); i++) {
+            // merges learned first have the highest score, so they are applied first
+            buffer.putFloat(i < 259 ? 0.0f : -i);
+            buffer.putInt(tokens.get(i).length);
+            buffer.put(tokens.get(i));
+        }
+        try (FileChannel out = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            CheckpointConverter.writeFully(out, buffer.flip());
+        }
+    }
+
+    static List<byte[]> vocab(int vocab_size, long seed) {
+        if (vocab_size < 259) {
+            throw new IllegalArgumentException("the tokenizer needs a vocab_size of at least 259, got " + vocab_size);
+        }
+        LinkedHashSet<String> pieces = new LinkedHashSet<>();
+        for (char c = ' '; c <= '~' && 259 + pieces.size() < vocab_size; c++) {
+            pieces.add(String.valueOf(c));
+        }
+        learnMerges(pieces, vocab_size - 259);
+        // random merges of the pieces so far fill the rest of the vocabulary
+        Random rng = new Random(seed);
+        List<String> known = new ArrayList<>(pieces);
+        while (259 + pieces.size() < vocab_size) {
+            String merge = known.get(rng.nextInt(known.size())) + known.get(rng.nextInt(known.size()));
+            if (merge.length() <= 16 && pieces.add(merge)) {
+                known.add(merge);
+            }
+        }
+
+        List<byte[]> tokens = new ArrayList<>(vocab_size);
+        tokens.add("<unk>".getBytes(StandardCharsets.UTF_8));
+        tokens.add("\n<s>\n".getBytes(StandardCharsets.UTF_8));
+        tokens.add("\n</s>\n".getBytes(StandardCharsets.UTF_8));
+        for (int b = 0; b < 256; b++) {
+            tokens.add("<0x%02X>".formatted(b).getBytes(StandardCharsets.UTF_8));
+        }
+        for (String piece : pieces) {
+            tokens.add(piece.getBytes(StandardCharsets.UTF_8));
+        }
+        return tokens;
+    }
+
+    static void learnMerges(LinkedHashSet<String> pieces, int max_pieces) {
+        // byte pair encoding of TEXT (with the leading space sentencepiece adds): merge the
+        // most frequent adjacent pair of pieces, the first to get there on a tie, until no
+        // pair occurs twice
+        List<String> text = new ArrayList<>();
+        (" " + TEXT).chars().forEach(c -> text.add(String.valueOf((char) c)));
+        text.removeIf(c -> !pieces.contains(c));
+        while (pieces.size() < max_pieces) {
+            Map<String, Integer> counts = new HashMap<>();
+            String best = null;
+            int best_count = 1;
+            for (int i = 0; i + 1 < text.size(); i++) {
+                String pair = text.get(i) + text.get(i + 1);
+                int count = counts.merge(pair, 1, Integer::sum);
+                if (count > best_count) {
+                    best_count = count;
+                    best = pair;
+                }
+            }
+            if (best == null) {
+                return;
+            }
+            pieces.add(best);
+            List<String> merged = new ArrayList<>(text.size());
+            for (int i = 0; i < text.size(); i++) {
+                if (i + 1 < text.size() && (text.get(i) + text.get(i + 1)).equals(best)) {
+                    merged.add(best);
+                    i++;
+                } else {
+                    merged.add(text.get(i));
+                }
+            }
+            text.clear();
+            text.addAll(merged);
+        }
+    }
+}
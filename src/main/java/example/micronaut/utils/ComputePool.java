@@ -0,0 +1,180 @@
+package example.micronaut.utils;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+
+// ----------------------------------------------------------------------------
+// fixed set of compute threads for the kernels. a job is split into ranges that the
+// workers and the calling thread claim with an atomic counter; the caller then waits
+// on a spin-then-park barrier. several callers (sessions) can run jobs at the same
+// time, and since a caller works on its own job it never waits on a busy pool.
+public final class ComputePool {
+
+    public interface RangeTask {
+        void run(int start, int end);
+    }
+
+    private static final int SPINS = 1 << 12; // busy waits before parking
+
+    private static volatile ComputePool instance;
+    private static int configured_threads = Runtime.getRuntime().availableProcessors();
+    private static long configured_l2_bytes = 256 * 1024;
+
+    public final int threads; // workers plus the calling thread
+    public final long l2_bytes; // cache budget of one range of matmul rows
+
+    private final Thread[] workers;
+    private final AtomicIntegerArray sleeping;
+    private final ConcurrentLinkedQueue<Job> jobs = new ConcurrentLinkedQueue<>();
+
+    private static final class Job {
+        final RangeTask task;
+        final int end;
+        final int block;
+        final int count; // number of ranges
+        final Thread owner;
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger done = new AtomicInteger();
+        volatile boolean waiting;
+        volatile Throwable error;
+
+        Job(RangeTask task, int end, int block) {
+            this.task = task;
+            this.end = end;
+            this.block = block;
+            this.count = (end + block - 1) / block;
+            this.owner = Thread.currentThread();
+        }
+    }
+
+    private ComputePool(int threads, long l2_bytes) {
+        this.threads = Math.max(1, threads);
+        this.l2_bytes = l2_bytes;
+        this.workers = new Thread[this.threads - 1];
+        this.sleeping = new AtomicIntegerArray(workers.length);
+        for (int i = 0; i < workers.length; i++) {
+            int id = i;
+            workers[i] = Thread.ofPlatform().name("llama2-compute-" + i).daemon().start(() -> work(id));
+        }
+    }
+
+    public static ComputePool instance() {
+        ComputePool pool = instance;
+        if (pool == null) {
+            synchronized (ComputePool.class) {
+                pool = instance;
+                if (pool == null) {
+                    instance = pool = new ComputePool(configured_threads, configured_l2_bytes);
+                }
+            }
+        }
+        return pool;
+    }
+
+    public static synchronized void configure(int threads, long l2_bytes) {
+        // threads <= 0 means one per available processor. there is one pool per process and
+        // it is never replaced, so it has to be configured before its first use
+        threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        ComputePool running = instance;
+        if (running != null) {
+            if (running.threads != threads || running.l2_bytes != l2_bytes) {
+                System.err.println("compute pool already running with " + running.threads + " threads and "
+                        + running.l2_bytes + " l2 bytes, keeping it instead of " + threads + " and " + l2_bytes);
+            }
+            return;
+        }
+        configured_threads = threads;
+        configured_l2_bytes = l2_bytes;
+    }
+
+    public void parallelFor(int count, IntConsumer body) {
+        // body(i) for i in [0, count), one index per range
+        run(count, 1, (start, end) -> {
+            for (int i = start; i < end; i++) {
+                body.accept(i);
+            }
+        });
+    }
+
+    public void run(int end, int block, RangeTask task) {
+        // task(start, end) over [0, end) in ranges of block, returns when all are done
+        if (workers.length == 0 || end <= block) {
+            task.run(0, end);
+            return;
+        }
+        Job job = new Job(task, end, block);
+        jobs.add(job);
+        for (int i = 0; i < workers.length && i < job.count - 1; i++) {
+            if (sleeping.get(i) == 1) {
+                LockSupport.unpark(workers[i]);
+            }
+        }
+        work(job);
+        jobs.remove(job);
+
+        // barrier: wait for the ranges claimed by the workers
+        int spins = 0;
+        while (job.done.get() < job.count) {
+            if (spins++ < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                job.waiting = true;
+                if (job.done.get() < job.count) {
+                    LockSupport.park(job);
+                }
+            }
+        }
+        Throwable error = job.error;
+        if (error instanceof RuntimeException e) {
+            throw e;
+        } else if (error instanceof Error e) {
+            throw e;
+        } else if (error != null) {
+            throw new IllegalStateException(error);
+        }
+    }
+
+    private boolean work(Job job) {
+        // claim and run ranges of job until none are left
+        boolean worked = false;
+        int b;
+        while ((b = job.next.getAndIncrement()) < job.count) {
+            worked = true;
+            int start = b * job.block;
+            try {
+                job.task.run(start, Math.min(job.end, start + job.block));
+            } catch (Throwable t) {
+                job.error = t;
+            }
+            if (job.done.incrementAndGet() == job.count && job.waiting) {
+                LockSupport.unpark(job.owner);
+            }
+        }
+        return worked;
+    }
+
+    private void work(int id) {
+        int spins = 0;
+        while (true) {
+            Job job = jobs.peek();
+            if (job != null) {
+                if (!work(job)) {
+                    jobs.remove(job); // fully claimed, look at the next one
+                }
+                spins = 0;
+            } else if (spins++ < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                sleeping.set(id, 1);
+                if (jobs.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                sleeping.set(id, 0);
+                spins = 0;
+            }
+        }
+    }
+}
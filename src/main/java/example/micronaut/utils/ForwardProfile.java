@@ -0,0 +1,130 @@
+package example.micronaut.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// ----------------------------------------------------------------------------
+// jfr events of the forward passes, for recordings of a running server (the native image
+// is built with jfr monitoring). every pass commits a llama2.Forward event with its
+// positions and number of rows. the phases of a pass (embedding, rmsnorm, qkv, rope,
+// attention, wo, residual, ffn, classifier) are llama2.ForwardPhase events per layer; there are
+// dozens per token, so they are disabled unless the recording enables them, e.g.
+//   -XX:StartFlightRecording:+llama2.ForwardPhase#enabled=true,filename=llama2.jfr
+// and with -Dllama2.ProfileEvery=N only one pass out of N records its phases, which
+// bounds their cost when they stay enabled in production. while no recording asks for
+// either event, all passes share one profile that records nothing and allocates nothing
+final class ForwardProfile {
+
+    static final int PROFILE_EVERY = Math.max(1, Integer.getInteger("llama2.ProfileEvery", 1));
+
+    enum Phase {
+        EMBEDDING, RMSNORM, QKV, ROPE, ATTENTION, WO, RESIDUAL, FFN, CLASSIFIER
+    }
+
+    @Name("llama2.Forward")
+    @Label("Forward Pass")
+    @Category({"Llama2", "Forward"})
+    @Description("A forward pass of the transformer over one or more tokens")
+    @StackTrace(false)
+    static final class ForwardEvent extends Event {
+        @Label("Model Dimension")
+        int dim;
+        @Label("First Position")
+        int first_position;
+        @Label("Last Position")
+        @Description("Largest position of the rows, the attention spans up to it")
+        int last_position;
+        @Label("Rows")
+        @Description("Tokens forwarded together: a prefill chunk, speculated tokens or the decode steps of a batch")
+        int rows;
+    }
+
+    @Name("llama2.ForwardPhase")
+    @Label("Forward Phase")
+    @Category({"Llama2", "Forward"})
+    @Description("A phase of a forward pass, within a layer or outside of them (layer -1)")
+    @StackTrace(false)
+    @Enabled(false)
+    static final class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+        @Label("Layer")
+        int layer;
+        @Label("Model Dimension")
+        int dim;
+        @Label("First Position")
+        int first_position;
+        @Label("Last Position")
+        int last_position;
+        @Label("Rows")
+        int rows;
+    }
+
+    private static final ForwardEvent PASSES = new ForwardEvent(); // only asked whether passes are recorded
+    private static final PhaseEvent PHASES = new PhaseEvent(); // only asked whether phases are recorded
+    private static final ForwardProfile OFF = new ForwardProfile();
+    private static final AtomicLong passes = new AtomicLong();
+
+    private final ForwardEvent pass; // null when nothing is recorded
+    private final boolean phases; // whether this pass records its phases
+    private PhaseEvent phase; // the running phase
+
+    static ForwardProfile start(int dim, int first_position, int last_position, int rows) {
+        if (!PASSES.isEnabled() && !PHASES.isEnabled()) {
+            return OFF;
+        }
+        return new ForwardProfile(dim, first_position, last_position, rows);
+    }
+
+    private ForwardProfile() {
+        pass = null;
+        phases = false;
+    }
+
+    private ForwardProfile(int dim, int first_position, int last_position, int rows) {
+        pass = new ForwardEvent();
+        pass.dim = dim;
+        pass.first_position = first_position;
+        pass.last_position = last_position;
+        pass.rows = rows;
+        pass.begin();
+        phases = PHASES.isEnabled() && (PROFILE_EVERY == 1 || passes.getAndIncrement() % PROFILE_EVERY == 0);
+    }
+
+    void phase(Phase next, int layer) {
+        // the running phase ends where the next one begins
+        if (!phases) {
+            return;
+        }
+        end();
+        phase = new PhaseEvent();
+        phase.phase = next.name();
+        phase.layer = layer;
+        phase.dim = pass.dim;
+        phase.first_position = pass.first_position;
+        phase.last_position = pass.last_position;
+        phase.rows = pass.rows;
+        phase.begin();
+    }
+
+    private void end() {
+        if (phase != null) {
+            phase.commit();
+            phase = null;
+        }
+    }
+
+    void finish() {
+        end();
+        if (pass != null) {
+            pass.commit();
+        }
+    }
+}
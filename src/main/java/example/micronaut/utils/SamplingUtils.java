@@ -1,10 +1,12 @@
 package example.micronaut.utils;
 
 import lombok.experimental.UtilityClass;
-import java.util.Comparator;
-import java.util.Scanner;
+import java.util.Arrays;
 
 import example.micronaut.model.Sampler;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
 
 @UtilityClass
 public class SamplingUtils {
@@ -25,7 +27,8 @@ public class SamplingUtils {
     }
 
     public int sample_mult(float[] probabilities, int n, float coin) {
-        // sample index from probabilities (they must sum to 1!)
+        // sample index from probabilities (they must sum to 1, or coin must be scaled by
+        // their sum)
         float cdf = 0.0f;
         for (int i = 0; i < n; i++) {
             cdf += probabilities[i];
@@ -42,14 +45,16 @@ public class SamplingUtils {
         array[to] = tmp;
     }
 
-    public void siftDown(int[] array, int from, int n, Comparator<Integer> comparator) {
+    public void siftDown(int[] array, int from, int n, float[] probabilities, boolean max) {
+        // sift array[from] down the binary heap array[0..n) of indices into probabilities,
+        // a max-heap (most likely on top) or a min-heap. compares floats, no boxing
         int prev = from, next;
         while ((next = 2 * prev + 1) < n) {
             int r = 2 * prev + 2;
-            if (r < n && comparator.compare(array[r], array[next]) < 0) {
+            if (r < n && above(probabilities[array[r]], probabilities[array[next]], max)) {
                 next = r;
             }
-            if (comparator.compare(array[next], array[prev]) < 0) {
+            if (above(probabilities[array[next]], probabilities[array[prev]], max)) {
                 swap(array, prev, next);
                 prev = next;
             } else {
@@ -58,58 +63,94 @@ public class SamplingUtils {
         }
     }
 
+    boolean above(float a, float b, boolean max) {
+        // does a belong above b in a max-heap (or min-heap)
+        return max ? a > b : a < b;
+    }
+
     public int sample_topp(float[] probabilities, int n, float topp, int[] indices, float coin) {
+        return sample_topp(probabilities, n, topp, indices, coin, 1.0f);
+    }
+
+    public int sample_topp(float[] probabilities, int n, float topp, int[] indices, float coin, float sum) {
         // top-p sampling (or "nucleus sampling") samples from the smallest set of
         // tokens that exceed probability topp. This way we never sample tokens that
         // have very low probabilities and are less likely to go "off the rails".
-        // coin is a random number in [0, 1), usually from random_f32()
-        Comparator<Integer> comparator = Comparator.<Integer>comparingDouble(i -> probabilities[i]).reversed();
+        // coin is a random number in [0, 1), usually from random_f32(). the
+        // probabilities may be unnormalized, sum being their total
+        int m = nucleus(probabilities, n, topp, 0, indices, sum);
+        return sample_candidates(probabilities, indices, m, coin);
+    }
 
-        int head = 0;
-        int tail = n - 1;
-        // values smaller than (1 - topp) / (n - 1) cannot be part of the result
-        // so for efficiency we crop these out as candidates before sorting
-        float cutoff = (1.0f - topp) / (n - 1);
-        for (int i = 0; i < indices.length; i++) {
-            if (probabilities[i] >= cutoff) {
-                indices[head++] = i;
-            } else {
-                indices[tail--] = i;
+    public int sample_topk(float[] probabilities, int n, int k, float topp, int[] indices, float coin) {
+        // top-k sampling samples from the k most likely tokens only, then from the
+        // smallest of those sets that exceeds probability topp of their total when
+        // 0 < topp < 1. probabilities may be unnormalized
+        int m = nucleus(probabilities, n, topp, k, indices, 0.0f);
+        return sample_candidates(probabilities, indices, m, coin);
+    }
+
+    int sample_candidates(float[] probabilities, int[] indices, int m, float coin) {
+        // sample from the candidates indices[0..m), renormalized to their own mass
+        float r = coin * mass(probabilities, indices, m);
+        float cdf = 0.0f;
+        for (int i = 0; i < m; i++) {
+            cdf += probabilities[indices[i]];
+            if (r < cdf) {
+                return indices[i];
             }
         }
+        return indices[m - 1]; // in case of rounding errors
+    }
 
-        int n0 = head;
-        // build heap O(n0)
-        for (int i = n0 / 2 - 1; i >= 0; --i) {
-            siftDown(indices, i, n0, comparator);
+    float mass(float[] probabilities, int[] indices, int m) {
+        // total probability of the candidates indices[0..m)
+        float mass = 0.0f;
+        for (int i = 0; i < m; i++) {
+            mass += probabilities[indices[i]];
         }
+        return mass;
+    }
 
-        // truncate the list where cumulative probability of the largest k elements
-        // exceeds topp
-        // O(k lg n0)
-        float cumulative_prob = 0.0f;
-        int last_idx = 0;
-        for (int i = n0 - 1; i >= 0; i--) {
-            swap(indices, 0, i);
-            cumulative_prob += probabilities[indices[i]];
-            if (cumulative_prob > topp) {
-                last_idx = i;
-                break; // we've exceeded topp by including last_idx
+    public float temperature_softmax(float[] logits, int n, float temperature) {
+        // softmax of logits / temperature in two sweeps instead of four (scale, max, exp
+        // and sum, normalize): logits[i] becomes exp((logits[i] - max) / temperature)
+        // and the sum is returned. the samplers take unnormalized probabilities, so the
+        // normalization is folded into their coin
+        float inv_temperature = 1.0f / temperature;
+        int i = 0;
+        float max_val = Float.NEGATIVE_INFINITY;
+        if (TransformerUtils.USE_VECTOR_API) {
+            VectorSpecies<Float> species = FloatVector.SPECIES_PREFERRED;
+            FloatVector max = FloatVector.broadcast(species, Float.NEGATIVE_INFINITY);
+            for (; i < species.loopBound(n); i += species.length()) {
+                max = max.max(FloatVector.fromArray(species, logits, i));
             }
-            siftDown(indices, 0, i - 1, comparator);
+            max_val = max.reduceLanes(VectorOperators.MAX);
+        }
+        for (; i < n; i++) {
+            max_val = Math.max(max_val, logits[i]);
         }
 
-        // sample from the truncated list
-        float r = coin * cumulative_prob;
-        float cdf = 0.0f;
-        for (int i = n0 - 1; i >= last_idx; i--) {
-            cdf += probabilities[indices[i]];
-            if (r < cdf) {
-                return indices[i];
+        // exp and sum, the temperature scales the shifted logits
+        i = 0;
+        float sum = 0.0f;
+        if (TransformerUtils.USE_VECTOR_API) {
+            VectorSpecies<Float> species = FloatVector.SPECIES_PREFERRED;
+            FloatVector acc = FloatVector.zero(species);
+            for (; i < species.loopBound(n); i += species.length()) {
+                FloatVector e = FloatVector.fromArray(species, logits, i).sub(max_val).mul(inv_temperature)
+                        .lanewise(VectorOperators.EXP);
+                e.intoArray(logits, i);
+                acc = acc.add(e);
             }
+            sum = acc.reduceLanes(VectorOperators.ADD);
         }
-
-        return indices[last_idx]; // in case of rounding errors
+        for (; i < n; i++) {
+            logits[i] = (float) Math.exp((logits[i] - max_val) * inv_temperature);
+            sum += logits[i];
+        }
+        return sum;
     }
 
     public int sample(Sampler sampler, float[] logits) {
@@ -119,33 +160,140 @@ public class SamplingUtils {
             // greedy argmax sampling: take the token with the highest probability
             next = sample_argmax(logits, sampler.vocab_size);
         } else {
-            // apply the temperature to the logits
-            for (int q = 0; q < sampler.vocab_size; q++) {
-                logits[q] /= sampler.temperature;
-            }
-            // apply softmax to the logits to get the probabilities for next token
-            TransformerUtils.softmax(logits, 0, sampler.vocab_size);
+            // apply the temperature and softmax to the logits to get the (unnormalized)
+            // probabilities for next token
+            float sum = temperature_softmax(logits, sampler.vocab_size, sampler.temperature);
             // flip a (float) coin (this is our source of entropy for sampling)
             float coin = sampler.random_f32();
             // we sample from this distribution to get the next token
-            if (sampler.topp <= 0 || sampler.topp >= 1) {
+            if (sampler.topk > 0 && sampler.topk < sampler.vocab_size) {
+                // top-k sampling, then top-p among those k
+                next = sample_topk(logits, sampler.vocab_size, sampler.topk, sampler.topp, sampler.probindex, coin);
+            } else if (sampler.topp <= 0 || sampler.topp >= 1) {
                 // simply sample from the predicted probability distribution
-                next = sample_mult(logits, sampler.vocab_size, coin);
+                next = sample_mult(logits, sampler.vocab_size, coin * sum);
             } else {
                 // top-p (nucleus) sampling, clamping the least likely tokens to zero
-                next = sample_topp(logits, sampler.vocab_size, sampler.topp, sampler.probindex, coin);
+                next = sample_topp(logits, sampler.vocab_size, sampler.topp, sampler.probindex, coin, sum);
             }
         }
         return next;
     }
 
-    public String read_stdin(String guide) {
-        // read a line from stdin, up to but not including \n
-        System.out.print(guide);
-        Scanner scanner = new Scanner(System.in);
-        if (scanner.hasNextLine()) {
-            return scanner.nextLine();
+    public int nucleus(float[] probabilities, int n, float topp, int topk, int[] indices, float sum) {
+        // the tokens that top-k / top-p sampling draw from, into indices[0..m) most likely
+        // first, and return m. probabilities may be unnormalized, sum being their total
+        // (only read by top-p without top-k)
+        if (topk > 0 && topk < n) {
+            // keep the k most likely in a min-heap, O(n lg k)
+            for (int i = 0; i < topk; i++) {
+                indices[i] = i;
+            }
+            for (int i = topk / 2 - 1; i >= 0; --i) {
+                siftDown(indices, i, topk, probabilities, false);
+            }
+            for (int i = topk; i < n; i++) {
+                if (probabilities[i] > probabilities[indices[0]]) {
+                    indices[0] = i;
+                    siftDown(indices, 0, topk, probabilities, false);
+                }
+            }
+            // heap sort them, most likely first, O(k lg k)
+            sum = 0.0f;
+            for (int i = topk - 1; i >= 0; i--) {
+                sum += probabilities[indices[0]];
+                swap(indices, 0, i);
+                siftDown(indices, 0, i, probabilities, false);
+            }
+            if (topp <= 0 || topp >= 1) {
+                return topk;
+            }
+            // truncate where the cumulative probability exceeds topp of their total
+            float cumulative_prob = 0.0f;
+            for (int i = 0; i < topk; i++) {
+                cumulative_prob += probabilities[indices[i]];
+                if (cumulative_prob > topp * sum) {
+                    return i + 1;
+                }
+            }
+            return topk;
+        }
+        if (topp <= 0 || topp >= 1) {
+            for (int i = 0; i < n; i++) {
+                indices[i] = i;
+            }
+            return n;
+        }
+
+        // values smaller than (1 - topp) / (n - 1) cannot be part of the result
+        // so for efficiency we crop these out as candidates before sorting
+        float cutoff = (1.0f - topp) / (n - 1) * sum;
+        int n0 = 0;
+        for (int i = 0; i < n; i++) {
+            if (probabilities[i] >= cutoff) {
+                indices[n0++] = i;
+            }
+        }
+        if (n0 == 0) {
+            // only with tiny vocabularies, when topp < 1 / n
+            for (int i = 0; i < n; i++) {
+                indices[i] = i;
+            }
+            n0 = n;
+        }
+        // build heap O(n0)
+        for (int i = n0 / 2 - 1; i >= 0; --i) {
+            siftDown(indices, i, n0, probabilities, true);
+        }
+        // pop the most likely to the back until the cumulative probability exceeds
+        // topp, O(k lg n0)
+        float cumulative_prob = 0.0f;
+        int last_idx = 0;
+        for (int i = n0 - 1; i >= 0; i--) {
+            swap(indices, 0, i);
+            cumulative_prob += probabilities[indices[i]];
+            if (cumulative_prob > topp * sum) {
+                last_idx = i;
+                break; // we've exceeded topp by including last_idx
+            }
+            siftDown(indices, 0, i, probabilities, true);
+        }
+        // indices[last_idx..n0) hold them least likely first, move them to the front
+        for (int i = last_idx, j = n0 - 1; i < j; i++, j--) {
+            swap(indices, i, j);
+        }
+        int m = n0 - last_idx;
+        System.arraycopy(indices, last_idx, indices, 0, m);
+        return m;
+    }
+
+    public void distribution(Sampler sampler, float[] logits) {
+        // turn logits, in place, into the normalized distribution sample() draws from:
+        // temperature softmax with the tokens outside top-k / top-p set to zero, or all
+        // the mass on the argmax when greedy. speculative decoding compares these
+        int n = sampler.vocab_size;
+        if (sampler.temperature == 0.0f) {
+            int max_i = sample_argmax(logits, n);
+            Arrays.fill(logits, 0, n, 0.0f);
+            logits[max_i] = 1.0f;
+            return;
+        }
+        float sum = temperature_softmax(logits, n, sampler.temperature);
+        int m = nucleus(logits, n, sampler.topp, sampler.topk, sampler.probindex, sum);
+        if (m < n) {
+            // flag the kept tokens by their sign, then clear the others
+            sum = mass(logits, sampler.probindex, m);
+            for (int i = 0; i < m; i++) {
+                int t = sampler.probindex[i];
+                logits[t] = -logits[t];
+            }
+            for (int i = 0; i < n; i++) {
+                logits[i] = logits[i] < 0 ? -logits[i] : 0.0f;
+            }
+        }
+        float inv_sum = 1.0f / sum;
+        for (int i = 0; i < n; i++) {
+            logits[i] *= inv_sum;
         }
-        return null;
     }
 }
@@ -1,7 +1,6 @@
 package example.micronaut.utils;
 
-import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
 
 import example.micronaut.model.Tokenizer;
@@ -14,26 +13,15 @@ public class TokenUtils {
     // ----------------------------------------------------------------------------
     // The Byte Pair Encoding (BPE) Tokenizer that translates strings <-> tokens
     public String decode(Tokenizer t, int prev_token, int token) {
-        String piece = t.vocab[token];
+        // the piece of one token on its own. a raw byte token of a multi-byte utf-8
+        // character decodes to U+FFFD here, streams of tokens go through a Detokenizer
+        String piece = t.vocab_pieces[token];
 
         // following BOS (1) token, sentencepiece decoder strips any leading whitespace
         // (see PR #89)
-        if (prev_token == 1 && piece.charAt(0) == ' ') {
+        if (prev_token == 1 && !piece.isEmpty() && piece.charAt(0) == ' ') {
             piece = piece.substring(1);
         }
-
-        // careful, some tokens designate raw bytes, and look like e.g. '<0x01>'
-        String prefix = "<0x";
-        String suffix = ">";
-        if (piece.length() == 6 && piece.startsWith(prefix) && piece.endsWith(suffix)) {
-            String hex2 = piece.substring(prefix.length(), prefix.length() + 2);
-            char ch = (char) Integer.parseInt(hex2, 16);
-
-            // ok this token is a raw byte token, carefuly to only print printable chars or
-            // whitespace
-            // some of the other bytes can be various control codes, backspace, etc. => skip
-            piece = Character.toString(ch);
-        }
         return piece;
     }
 
@@ -57,6 +45,165 @@ public class TokenUtils {
         return piece;
     }
 
+    int utf8(int cp, int[] out, int n, int offset) {
+        // write the utf-8 bytes of codepoint cp plus offset to out from n, return the new n.
+        // a lone surrogate becomes '?', as String.getBytes does
+        if (cp < 0x80) {
+            out[n++] = cp + offset;
+        } else if (cp < 0x800) {
+            out[n++] = (0xC0 | (cp >> 6)) + offset;
+            out[n++] = (0x80 | (cp & 0x3F)) + offset;
+        } else if (cp < 0x10000 && Character.isSurrogate((char) cp)) {
+            out[n++] = '?' + offset;
+        } else if (cp < 0x10000) {
+            out[n++] = (0xE0 | (cp >> 12)) + offset;
+            out[n++] = (0x80 | ((cp >> 6) & 0x3F)) + offset;
+            out[n++] = (0x80 | (cp & 0x3F)) + offset;
+        } else {
+            out[n++] = (0xF0 | (cp >> 18)) + offset;
+            out[n++] = (0x80 | ((cp >> 12) & 0x3F)) + offset;
+            out[n++] = (0x80 | ((cp >> 6) & 0x3F)) + offset;
+            out[n++] = (0x80 | (cp & 0x3F)) + offset;
+        }
+        return n;
+    }
+
+    int merge(Tokenizer t, int[] tokens, int n) {
+        // merge the best scoring pair of tokens[0..n) until no pair is in vocab, return the
+        // number of tokens left. same result as rescanning all pairs after every merge, but
+        // with a linked list of the tokens and a heap of the candidate merges, O(n log n).
+        // ties go to the leftmost pair, as with the scan
+        int[] next = new int[n];
+        int[] prev = new int[n];
+        for (int i = 0; i < n; i++) {
+            next[i] = i + 1;
+            prev[i] = i - 1;
+        }
+        MergeHeap heap = new MergeHeap(2 * n);
+        for (int i = 0; i + 1 < n; i++) {
+            heap.offer(t, tokens, i, i + 1);
+        }
+        while (heap.size > 0) {
+            int left = heap.left[0];
+            int right = heap.right[0];
+            int id = heap.merged[0];
+            long pair = heap.pair[0];
+            heap.poll();
+            if (next[left] != right || tokens[right] == -1 || pair != MergeHeap.pair(tokens[left], tokens[right])) {
+                continue; // stale, one of the two tokens was merged since
+            }
+            // merge the consecutive pair (left, right) into new token id, unlink right
+            tokens[left] = id;
+            tokens[right] = -1;
+            next[left] = next[right];
+            if (next[right] < n) {
+                prev[next[right]] = left;
+            }
+            // the merged token forms new pairs with its neighbours
+            if (prev[left] >= 0) {
+                heap.offer(t, tokens, prev[left], left);
+            }
+            if (next[left] < n) {
+                heap.offer(t, tokens, left, next[left]);
+            }
+        }
+        // the first token is never unlinked, compact the list back into tokens
+        int n_tokens = 0;
+        for (int i = 0; i < n; i = next[i]) {
+            tokens[n_tokens++] = tokens[i];
+        }
+        return n_tokens;
+    }
+
+    // binary max-heap of candidate merges, by score then leftmost position
+    static final class MergeHeap {
+        float[] score;
+        int[] left;
+        int[] right;
+        int[] merged;
+        long[] pair; // the two token ids at the time of the offer
+        int size;
+
+        MergeHeap(int capacity) {
+            capacity = Math.max(capacity, 1);
+            score = new float[capacity];
+            left = new int[capacity];
+            right = new int[capacity];
+            merged = new int[capacity];
+            pair = new long[capacity];
+        }
+
+        static long pair(int a, int b) {
+            return ((long) a << 32) | (b & 0xFFFFFFFFL);
+        }
+
+        void offer(Tokenizer t, int[] tokens, int l, int r) {
+            // add the merge of the tokens at l and r, if their concatenation is in vocab
+            int id = t.merge(tokens[l], tokens[r]);
+            if (id == -1) {
+                return;
+            }
+            if (size == score.length) {
+                score = Arrays.copyOf(score, 2 * size);
+                left = Arrays.copyOf(left, 2 * size);
+                right = Arrays.copyOf(right, 2 * size);
+                merged = Arrays.copyOf(merged, 2 * size);
+                pair = Arrays.copyOf(pair, 2 * size);
+            }
+            int i = size++;
+            set(i, t.vocab_scores[id], l, r, id, pair(tokens[l], tokens[r]));
+            while (i > 0 && before(i, (i - 1) / 2)) {
+                swap(i, (i - 1) / 2);
+                i = (i - 1) / 2;
+            }
+        }
+
+        void poll() {
+            // remove the top entry
+            size--;
+            swap(0, size);
+            int i = 0;
+            while (true) {
+                int best = i;
+                int c = 2 * i + 1;
+                if (c < size && before(c, best)) {
+                    best = c;
+                }
+                if (c + 1 < size && before(c + 1, best)) {
+                    best = c + 1;
+                }
+                if (best == i) {
+                    return;
+                }
+                swap(i, best);
+                i = best;
+            }
+        }
+
+        boolean before(int i, int j) {
+            // does entry i come out of the heap before entry j
+            return score[i] > score[j] || (score[i] == score[j] && left[i] < left[j]);
+        }
+
+        void set(int i, float s, int l, int r, int id, long p) {
+            score[i] = s;
+            left[i] = l;
+            right[i] = r;
+            merged[i] = id;
+            pair[i] = p;
+        }
+
+        void swap(int i, int j) {
+            float s = score[i];
+            int l = left[i];
+            int r = right[i];
+            int id = merged[i];
+            long p = pair[i];
+            set(i, score[j], left[j], right[j], merged[j], pair[j]);
+            set(j, s, l, r, id, p);
+        }
+    }
+
     public int str_lookup(String str, Map<String, Integer> sorted_vocab) {
         // efficiently find the perfect match for str in vocab, return its index or -1
         // if not found
@@ -73,15 +220,6 @@ public class TokenUtils {
             System.exit(1);
         }
 
-        if (t.sorted_vocab == null) {
-            // sort vocabulary
-            t.sorted_vocab = new HashMap<>();
-            for (int i = 0; i < t.vocab_size; i++) {
-                assert !t.sorted_vocab.containsKey(t.vocab[i]);
-                t.sorted_vocab.put(t.vocab[i], i);
-            }
-        }
-
         // start at 0 tokens
         int n_tokens = 0; // the number of tokens
 
@@ -102,8 +240,7 @@ public class TokenUtils {
         for (int i = 0, cpi; i < text.length(); i += Character.charCount(cpi)) {
             cpi = text.codePointAt(i);
 
-            String singleCodepoint = Character.toString(cpi);
-            int id = str_lookup(singleCodepoint, t.sorted_vocab);
+            int id = t.codepoint(cpi);
 
             if (id != -1) {
                 // we found this codepoint in vocab, add it as a token
@@ -112,43 +249,13 @@ public class TokenUtils {
                 // byte_fallback encoding: just encode each byte as a token
                 // +3 is here because the first 3 vocab elements are <unk>, <s>, </s>
                 // so the individual bytes only start at index 3
-                for (byte b : singleCodepoint.getBytes(StandardCharsets.UTF_8)) {
-                    tokens[n_tokens++] = Byte.toUnsignedInt(b) + 3;
-                }
+                n_tokens = utf8(cpi, tokens, n_tokens, 3);
             }
         }
 
         // merge the best consecutive pair each iteration, according the scores in
         // vocab_scores
-        while (true) {
-            float best_score = -1e10f;
-            int best_id = -1;
-            int best_idx = -1;
-
-            for (int i = 0; i < n_tokens - 1; ++i) {
-                // check if we can merge the pair (tokens[i], tokens[i+1])
-                String str_buffer = t.vocab[tokens[i]] + t.vocab[tokens[i + 1]];
-                int id = str_lookup(str_buffer, t.sorted_vocab);
-                if (id != -1 && t.vocab_scores[id] > best_score) {
-                    // this merge pair exists in vocab! record its score and position
-                    best_score = t.vocab_scores[id];
-                    best_id = id;
-                    best_idx = i;
-                }
-            }
-
-            if (best_idx == -1) {
-                break; // we couldn't find any more pairs to merge, so we're done
-            }
-
-            // merge the consecutive pair (best_idx, best_idx+1) into new token best_id
-            tokens[best_idx] = best_id;
-            // delete token at position best_idx+1, shift the entire sequence back 1
-            for (int i = best_idx + 1; i < n_tokens - 1; i++) {
-                tokens[i] = tokens[i + 1];
-            }
-            n_tokens--; // token length decreased
-        }
+        n_tokens = merge(t, tokens, n_tokens);
 
         // add optional EOS (=2) token, if desired
         if (eos) {
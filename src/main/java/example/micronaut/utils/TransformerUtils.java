@@ -1,17 +1,32 @@
 package example.micronaut.utils;
 
 import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.util.Arrays;
-import java.util.stream.IntStream;
 
+import example.micronaut.model.BF16Tensor;
+import example.micronaut.model.BatchState;
 import example.micronaut.model.Config;
+import example.micronaut.model.F16Tensor;
+import example.micronaut.model.F32Tensor;
+import example.micronaut.model.KVBlockPool;
+import example.micronaut.model.PagedKVCache;
+import example.micronaut.model.Q4Tensor;
+import example.micronaut.model.Q8Tensor;
 import example.micronaut.model.RunState;
+import example.micronaut.model.Tensor;
 import example.micronaut.model.Transformer;
 import example.micronaut.model.Weights;
+import example.micronaut.utils.ForwardProfile.Phase;
+import jdk.incubator.vector.ByteVector;
 import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
 import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorShuffle;
 import jdk.incubator.vector.VectorSpecies;
 import lombok.experimental.UtilityClass;
 
@@ -35,6 +50,86 @@ public class TransformerUtils {
         }
     }
 
+    public void rmsnorm(float[] o, float[] x, Tensor weight, int size) {
+        // same as above for rmsnorm weights in any float format, half precision weights
+        // are widened to float32 in registers
+        switch (weight) {
+            case F32Tensor f -> rmsnorm(o, x, f.buffer, size);
+            case F16Tensor h -> rmsnorm(o, x, h.data, false, size);
+            case BF16Tensor h -> rmsnorm(o, x, h.data, true, size);
+            case Q8Tensor q -> throw new IllegalArgumentException("rmsnorm weights cannot be quantized");
+            case Q4Tensor q -> throw new IllegalArgumentException("rmsnorm weights cannot be quantized");
+        }
+    }
+
+    void rmsnorm(float[] o, float[] x, MemorySegment weight, boolean bf16, int size) {
+        // calculate sum of squares
+        float ss = 0.0f;
+        for (int j = 0; j < size; j++) {
+            ss += x[j] * x[j];
+        }
+        ss /= size;
+        ss += 1e-5f;
+        ss = 1.0f / (float) Math.sqrt(ss);
+        // normalize and scale
+        int j = 0;
+        if (USE_VECTOR_API) {
+            VectorSpecies<Float> species = FloatVector.SPECIES_256;
+            for (; j + species.length() <= size; j += species.length()) {
+                FloatVector w = bf16 ? widenBF16(weight, j) : widenF16(weight, j);
+                w.mul(FloatVector.fromArray(species, x, j).mul(ss)).intoArray(o, j);
+            }
+        }
+        for (; j < size; j++) {
+            o[j] = half(weight, bf16, j) * (ss * x[j]);
+        }
+    }
+
+    float half(MemorySegment data, boolean bf16, long index) {
+        short bits = data.getAtIndex(F16Tensor.HALF, index);
+        return bf16 ? Float.intBitsToFloat((bits & 0xFFFF) << 16) : Float.float16ToFloat(bits);
+    }
+
+    FloatVector widenF16(MemorySegment data, long index) {
+        // 8 float16 values starting at index -> float32 lanes. exponent and mantissa are
+        // shifted into place and rebiased by multiplying with 2^(127-15), which is exact
+        // for normal and subnormal values (weights hold no infinities or NaNs)
+        var h = (IntVector) ShortVector.fromMemorySegment(ShortVector.SPECIES_128, data, index * Short.BYTES,
+                ByteOrder.LITTLE_ENDIAN).convertShape(VectorOperators.S2I, IntVector.SPECIES_256, 0);
+        var sign = h.and(0x8000).lanewise(VectorOperators.LSHL, 16);
+        var magnitude = h.and(0x7FFF).lanewise(VectorOperators.LSHL, 13).reinterpretAsFloats().mul(0x1p112f);
+        return magnitude.reinterpretAsInts().or(sign).reinterpretAsFloats();
+    }
+
+    FloatVector widenBF16(MemorySegment data, long index) {
+        // 8 bfloat16 values starting at index -> float32 lanes, they are the upper halves
+        var h = (IntVector) ShortVector.fromMemorySegment(ShortVector.SPECIES_128, data, index * Short.BYTES,
+                ByteOrder.LITTLE_ENDIAN).convertShape(VectorOperators.S2I, IntVector.SPECIES_256, 0);
+        return h.lanewise(VectorOperators.LSHL, 16).reinterpretAsFloats();
+    }
+
+    public void embed(float[] x, Tensor table, int token, int dim) {
+        // copy the embedding of token into x, widening half precision rows in registers
+        MemorySegment data = switch (table) {
+            case F16Tensor h -> h.data;
+            case BF16Tensor h -> h.data;
+            default -> null;
+        };
+        if (data == null || !USE_VECTOR_API) {
+            table.copyTo(token * dim, x, 0, dim);
+            return;
+        }
+        boolean bf16 = table instanceof BF16Tensor;
+        long offset = (long) token * dim;
+        int j = 0;
+        for (; j + FloatVector.SPECIES_256.length() <= dim; j += FloatVector.SPECIES_256.length()) {
+            (bf16 ? widenBF16(data, offset + j) : widenF16(data, offset + j)).intoArray(x, j);
+        }
+        for (; j < dim; j++) {
+            x[j] = half(data, bf16, offset + j);
+        }
+    }
+
     public void softmax(float[] x, int xOffset, int size) {
         // find max value (for numerical stability)
         float max_val = x[0 + xOffset];
@@ -58,200 +153,867 @@ public class TransformerUtils {
     public static final boolean USE_VECTOR_API = "true"
             .equalsIgnoreCase(System.getProperty("llama2.VectorAPI", "false"));
 
+    // matmuls with less multiply-adds than this run on the calling thread, below it the
+    // barrier costs more than the parallel speedup
+    public static final long SEQUENTIAL_WORK = 1 << 15;
+
+    public void parallelRows(int d, long work, long row_bytes, ComputePool.RangeTask rows) {
+        // split the d rows of W into contiguous ranges: each range is streamed from memory
+        // once and should fit in L2 next to x, but every thread gets at least two ranges
+        // so that one slow thread does not hold up the others at the barrier
+        ComputePool pool = ComputePool.instance();
+        if (work < SEQUENTIAL_WORK || pool.threads == 1) {
+            rows.run(0, d);
+            return;
+        }
+        long block = Math.max(1, pool.l2_bytes / row_bytes);
+        block = Math.min(block, Math.max(1, (d + 2 * pool.threads - 1) / (2 * pool.threads)));
+        pool.run(d, (int) block, rows);
+    }
+
+    public long rowBytes(Tensor w, int n) {
+        // bytes of one row of W with n columns
+        return switch (w) {
+            case F32Tensor f -> (long) n * Float.BYTES;
+            case Q8Tensor q -> n + (long) n / q.group_size * Float.BYTES;
+            case Q4Tensor q -> n / 2 + (long) n / q.group_size * Short.BYTES;
+            case F16Tensor h -> (long) n * Short.BYTES;
+            case BF16Tensor h -> (long) n * Short.BYTES;
+        };
+    }
+
     public void matmul(float[] xout, float[] x, FloatBuffer w, int n, int d) {
         // W (d,n) @ x (n,) -> xout (d,)
         // by far the most amount of time is spent inside this little function
         MemorySegment wSegment = MemorySegment.ofBuffer(w);
-        IntStream.range(0, d).parallel().forEach(i -> {
-            float val = 0f;
+        parallelRows(d, (long) d * n, (long) n * Float.BYTES, (start, end) -> {
+            for (int i = start; i < end; i++) {
+                xout[i] = dot(w, wSegment, i * n, x, n);
+            }
+        });
+    }
+
+    public void matmul(float[][] xout, float[][] x, FloatBuffer w, int n, int d, int batch) {
+        // W (d,n) @ X (batch,n) -> XOUT (batch,d)
+        // each row of W is streamed from memory once and then applied to all the
+        // activation vectors of the batch while it is still hot in the cache
+        MemorySegment wSegment = MemorySegment.ofBuffer(w);
+        parallelRows(d, (long) d * n * batch, (long) n * Float.BYTES, (start, end) -> {
+            for (int i = start; i < end; i++) {
+                for (int b = 0; b < batch; b++) {
+                    xout[b][i] = dot(w, wSegment, i * n, x[b], n);
+                }
+            }
+        });
+    }
+
+    public void matmul(float[] xout, float[] x, Tensor w, int n, int d) {
+        // W (d,n) @ x (n,) -> xout (d,) for any weight format
+        matmul(xout, x, w, n, d, null, null);
+    }
+
+    public void matmul(float[] xout, float[] x, Tensor w, int n, int d, byte[] xq, float[] xs) {
+        // same, xq/xs being scratch of at least n values that x is quantized into for int8
+        // weights (RunState.xq/xs, allocated here when null)
+        switch (w) {
+            case F32Tensor f -> matmul(xout, x, f.buffer, n, d);
+            case Q8Tensor q -> matmul(xout, x, q, n, d, xq, xs);
+            case Q4Tensor q -> parallelRows(d, (long) d * n, rowBytes(w, n), (start, end) -> {
+                for (int i = start; i < end; i++) {
+                    xout[i] = dot(q, i * n, x, n);
+                }
+            });
+            case F16Tensor h -> parallelRows(d, (long) d * n, rowBytes(w, n), (start, end) -> {
+                for (int i = start; i < end; i++) {
+                    xout[i] = dot(h.data, false, i * n, x, n);
+                }
+            });
+            case BF16Tensor h -> parallelRows(d, (long) d * n, rowBytes(w, n), (start, end) -> {
+                for (int i = start; i < end; i++) {
+                    xout[i] = dot(h.data, true, i * n, x, n);
+                }
+            });
+        }
+    }
+
+    public void matmul(float[][] xout, float[][] x, Tensor w, int n, int d, int batch) {
+        // W (d,n) @ X (batch,n) -> XOUT (batch,d) for any weight format
+        matmul(xout, x, w, n, d, batch, null, null);
+    }
+
+    public void matmul(float[][] xout, float[][] x, Tensor w, int n, int d, int batch, byte[][] xq, float[][] xs) {
+        // same, with the scratch rows of BatchState.xq/xs (allocated here when null)
+        switch (w) {
+            case F32Tensor f -> matmul(xout, x, f.buffer, n, d, batch);
+            case Q8Tensor q -> matmul(xout, x, q, n, d, batch, xq, xs);
+            case Q4Tensor q -> parallelRows(d, (long) d * n * batch, rowBytes(w, n), (start, end) -> {
+                for (int i = start; i < end; i++) {
+                    for (int b = 0; b < batch; b++) {
+                        xout[b][i] = dot(q, i * n, x[b], n);
+                    }
+                }
+            });
+            case F16Tensor h -> parallelRows(d, (long) d * n * batch, rowBytes(w, n), (start, end) -> {
+                for (int i = start; i < end; i++) {
+                    for (int b = 0; b < batch; b++) {
+                        xout[b][i] = dot(h.data, false, i * n, x[b], n);
+                    }
+                }
+            });
+            case BF16Tensor h -> parallelRows(d, (long) d * n * batch, rowBytes(w, n), (start, end) -> {
+                for (int i = start; i < end; i++) {
+                    for (int b = 0; b < batch; b++) {
+                        xout[b][i] = dot(h.data, true, i * n, x[b], n);
+                    }
+                }
+            });
+        }
+    }
+
+    public void matmul(float[] xout, float[] x, Q8Tensor w, int n, int d, byte[] xq, float[] xs) {
+        // W (d,n) @ x (n,) -> xout (d,) with int8 weights
+        // x is quantized to int8 with the same groups as W, so that every group is an
+        // integer dot product scaled by the weight and activation scales of the group
+        byte[] quantized = xq != null ? xq : new byte[n];
+        float[] scales = xs != null ? xs : new float[n / w.group_size];
+        quantize(x, n, w.group_size, quantized, scales);
+        parallelRows(d, (long) d * n, rowBytes(w, n), (start, end) -> {
+            for (int i = start; i < end; i++) {
+                xout[i] = dot(w, i * n, quantized, scales, n);
+            }
+        });
+    }
+
+    public void matmul(float[][] xout, float[][] x, Q8Tensor w, int n, int d, int batch, byte[][] xq, float[][] xs) {
+        // W (d,n) @ X (batch,n) -> XOUT (batch,d) with int8 weights
+        byte[][] quantized = xq != null ? xq : new byte[batch][n];
+        float[][] scales = xs != null ? xs : new float[batch][n / w.group_size];
+        quantize(x, n, w, batch, quantized, scales);
+        parallelRows(d, (long) d * n * batch, rowBytes(w, n), (start, end) -> {
+            for (int i = start; i < end; i++) {
+                for (int b = 0; b < batch; b++) {
+                    xout[b][i] = dot(w, i * n, quantized[b], scales[b], n);
+                }
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------
+    // fused projections: the matmuls that read the same input (wq/wk/wv and w1/w3) run
+    // as one parallel pass over their rows, so x is read (and quantized) once and each
+    // layer waits on fewer barriers. SwiGLU is applied as the w1/w3 rows are computed
+
+    public static final boolean USE_FUSED_PROJECTIONS = "true"
+            .equalsIgnoreCase(System.getProperty("llama2.FusedProjections", "true"));
+
+    Q8Tensor q8(Tensor... ws) {
+        // the first int8 matrix, its group size is the one of the whole checkpoint
+        for (Tensor w : ws) {
+            if (w instanceof Q8Tensor q) {
+                return q;
+            }
+        }
+        return null;
+    }
+
+    float dot(Tensor w, int i, int n, float[] x, byte[] xq, float[] xs) {
+        // row i of W (d,n) @ x (n,), xq/xs being x quantized for int8 weights
+        return switch (w) {
+            case F32Tensor f -> dot(f.buffer, f.segment, i * n, x, n);
+            case Q8Tensor q -> dot(q, i * n, xq, xs, n);
+            case Q4Tensor q -> dot(q, i * n, x, n);
+            case F16Tensor h -> dot(h.data, false, i * n, x, n);
+            case BF16Tensor h -> dot(h.data, true, i * n, x, n);
+        };
+    }
+
+    public void matmulQKV(float[][] q, float[][] k, float[][] v, float[][] x, Tensor wq, Tensor wk, Tensor wv,
+            int n, int q_dim, int kv_dim, int batch, byte[][] xq, float[][] xs) {
+        // Wq (q_dim,n), Wk/Wv (kv_dim,n) @ X (batch,n) -> Q (batch,q_dim), K/V (batch,kv_dim)
+        // xq/xs: scratch rows that X is quantized into for int8 weights
+        quantize(x, n, q8(wq, wk, wv), batch, xq, xs);
+        int d = q_dim + 2 * kv_dim;
+        parallelRows(d, (long) d * n * batch, rowBytes(wq, n), (start, end) -> {
+            for (int i = start; i < end; i++) {
+                for (int b = 0; b < batch; b++) {
+                    if (i < q_dim) {
+                        q[b][i] = dot(wq, i, n, x[b], xq[b], xs[b]);
+                    } else if (i < q_dim + kv_dim) {
+                        k[b][i - q_dim] = dot(wk, i - q_dim, n, x[b], xq[b], xs[b]);
+                    } else {
+                        v[b][i - q_dim - kv_dim] = dot(wv, i - q_dim - kv_dim, n, x[b], xq[b], xs[b]);
+                    }
+                }
+            }
+        });
+    }
+
+    public void matmulSwiGLU(float[][] hb, float[][] x, Tensor w1, Tensor w3, int n, int hidden_dim, int batch,
+            byte[][] xq, float[][] xs) {
+        // silu(W1 (hidden_dim,n) @ X) * (W3 (hidden_dim,n) @ X) -> HB (batch,hidden_dim)
+        quantize(x, n, q8(w1, w3), batch, xq, xs);
+        parallelRows(hidden_dim, 2L * hidden_dim * n * batch, rowBytes(w1, n) + rowBytes(w3, n), (start, end) -> {
+            for (int i = start; i < end; i++) {
+                for (int b = 0; b < batch; b++) {
+                    float val = dot(w1, i, n, x[b], xq[b], xs[b]);
+                    // silu(x)=x*σ(x), where σ(x) is the logistic sigmoid
+                    val *= (1.0f / (1.0f + Math.exp(-val)));
+                    // elementwise multiply with w3(x)
+                    hb[b][i] = val * dot(w3, i, n, x[b], xq[b], xs[b]);
+                }
+            }
+        });
+    }
+
+    void quantize(float[][] x, int n, Q8Tensor w, int batch, byte[][] xq, float[][] xs) {
+        // the rows of X quantized with the groups of W, nothing to do without int8 weights
+        if (w == null) {
+            return;
+        }
+        for (int b = 0; b < batch; b++) {
+            quantize(x[b], n, w.group_size, xq[b], xs[b]);
+        }
+    }
+
+    public void quantize(float[] x, int n, int group_size, byte[] xq, float[] xs) {
+        // symmetric int8 quantization of x, one scale per group of group_size values
+        for (int g = 0; g < n / group_size; g++) {
+            // find the max absolute value in the current group
+            float wmax = 0.0f;
+            for (int i = 0; i < group_size; i++) {
+                wmax = Math.max(wmax, Math.abs(x[g * group_size + i]));
+            }
+            // calculate and write the scaling factor
+            float scale = wmax / 127.0f;
+            xs[g] = scale;
+            // calculate and write the quantized values
+            for (int i = 0; i < group_size; i++) {
+                float quant_value = scale == 0.0f ? 0.0f : x[g * group_size + i] / scale;
+                xq[g * group_size + i] = (byte) Math.round(quant_value);
+            }
+        }
+    }
+
+    float dot(Q8Tensor w, int offset, byte[] xq, float[] xs, int n) {
+        // dot product of the n int8 weights starting at offset (group aligned) with the
+        // quantized x, accumulated in int32 within a group
+        int group_size = w.group_size;
+        float val = 0f;
+        for (int g = 0; g < n / group_size; g++) {
+            long wBase = offset + (long) g * group_size;
+            int xBase = g * group_size;
+            int ival = 0;
             int j = 0;
             if (USE_VECTOR_API) {
-                VectorSpecies<Float> species = FloatVector.SPECIES_256;
-                FloatVector sum0 = FloatVector.zero(species);
-                FloatVector sum1 = FloatVector.zero(species);
-                FloatVector sum2 = FloatVector.zero(species);
-                FloatVector sum3 = FloatVector.zero(species);
-                int width = species.length();
-                int upperBound = n - n % (4 * width);
-                for (; j < upperBound; j += 4 * width) {
-                    var wj0 = FloatVector.fromMemorySegment(species, wSegment, (i * n + j + 0 * width) * Float.BYTES,
-                            ByteOrder.LITTLE_ENDIAN);
-                    var wj1 = FloatVector.fromMemorySegment(species, wSegment, (i * n + j + 1 * width) * Float.BYTES,
-                            ByteOrder.LITTLE_ENDIAN);
-                    var wj2 = FloatVector.fromMemorySegment(species, wSegment, (i * n + j + 2 * width) * Float.BYTES,
-                            ByteOrder.LITTLE_ENDIAN);
-                    var wj3 = FloatVector.fromMemorySegment(species, wSegment, (i * n + j + 3 * width) * Float.BYTES,
+                IntVector acc = IntVector.zero(IntVector.SPECIES_256);
+                for (; j + 8 <= group_size; j += 8) {
+                    var wj = (IntVector) ByteVector.fromMemorySegment(ByteVector.SPECIES_64, w.q, wBase + j,
+                            ByteOrder.LITTLE_ENDIAN).convertShape(VectorOperators.B2I, IntVector.SPECIES_256, 0);
+                    var xj = (IntVector) ByteVector.fromArray(ByteVector.SPECIES_64, xq, xBase + j)
+                            .convertShape(VectorOperators.B2I, IntVector.SPECIES_256, 0);
+                    acc = acc.add(wj.mul(xj));
+                }
+                ival = acc.reduceLanes(VectorOperators.ADD);
+            }
+            for (; j < group_size; j++) {
+                ival += w.q.get(ValueLayout.JAVA_BYTE, wBase + j) * xq[xBase + j];
+            }
+            val += ival * w.scale((int) (wBase / group_size)) * xs[g];
+        }
+        return val;
+    }
+
+    float dot(Q4Tensor w, int offset, float[] x, int n) {
+        // dot product of the n 4-bit weights starting at offset (group aligned) with x.
+        // byte j of a group packs values j and j + group_size / 2, so the low and high
+        // nibbles of 8 consecutive bytes line up with two contiguous 8-float runs of x
+        int group_size = w.group_size;
+        int half = group_size / 2;
+        float val = 0f;
+        for (int g = 0; g < n / group_size; g++) {
+            long qBase = (offset + (long) g * group_size) / 2;
+            int xBase = g * group_size;
+            float gval = 0f;
+            int j = 0;
+            if (USE_VECTOR_API) {
+                FloatVector acc = FloatVector.zero(FloatVector.SPECIES_256);
+                for (; j + 8 <= half; j += 8) {
+                    var packed = ByteVector.fromMemorySegment(ByteVector.SPECIES_64, w.q, qBase + j,
                             ByteOrder.LITTLE_ENDIAN);
-                    var xj0 = FloatVector.fromArray(species, x, j + 0 * width);
-                    var xj1 = FloatVector.fromArray(species, x, j + 1 * width);
-                    var xj2 = FloatVector.fromArray(species, x, j + 2 * width);
-                    var xj3 = FloatVector.fromArray(species, x, j + 3 * width);
-                    sum0 = wj0.fma(xj0, sum0);
-                    sum1 = wj1.fma(xj1, sum1);
-                    sum2 = wj2.fma(xj2, sum2);
-                    sum3 = wj3.fma(xj3, sum3);
+                    var lo = (FloatVector) packed.and((byte) 0x0F).sub((byte) 8)
+                            .convertShape(VectorOperators.B2F, FloatVector.SPECIES_256, 0);
+                    var hi = (FloatVector) packed.lanewise(VectorOperators.LSHR, 4).and((byte) 0x0F).sub((byte) 8)
+                            .convertShape(VectorOperators.B2F, FloatVector.SPECIES_256, 0);
+                    acc = lo.fma(FloatVector.fromArray(FloatVector.SPECIES_256, x, xBase + j), acc);
+                    acc = hi.fma(FloatVector.fromArray(FloatVector.SPECIES_256, x, xBase + half + j), acc);
                 }
-                val = sum0.add(sum1).add(sum2).add(sum3).reduceLanes(VectorOperators.ADD);
+                gval = acc.reduceLanes(VectorOperators.ADD);
+            }
+            for (; j < half; j++) {
+                byte packed = w.q.get(ValueLayout.JAVA_BYTE, qBase + j);
+                gval += ((packed & 0x0F) - 8) * x[xBase + j];
+                gval += (((packed >> 4) & 0x0F) - 8) * x[xBase + half + j];
             }
+            val += gval * w.scale((int) ((offset + (long) g * group_size) / group_size));
+        }
+        return val;
+    }
 
-            // Graal's auto-vectorization.
-            int upperBound = n & ~3;
-            float[] sum = new float[4];
-            for (; j < upperBound; j += sum.length) {
-                sum[0] += w.get(i * n + j + 0) * x[j + 0];
-                sum[1] += w.get(i * n + j + 1) * x[j + 1];
-                sum[2] += w.get(i * n + j + 2) * x[j + 2];
-                sum[3] += w.get(i * n + j + 3) * x[j + 3];
+    float dot(MemorySegment w, boolean bf16, int offset, float[] x, int n) {
+        // dot product of the n float16 (or bfloat16) weights starting at offset with x
+        float val = 0f;
+        int j = 0;
+        if (USE_VECTOR_API) {
+            VectorSpecies<Float> species = FloatVector.SPECIES_256;
+            FloatVector sum0 = FloatVector.zero(species);
+            FloatVector sum1 = FloatVector.zero(species);
+            int width = species.length();
+            for (; j + 2 * width <= n; j += 2 * width) {
+                var wj0 = bf16 ? widenBF16(w, (long) offset + j) : widenF16(w, (long) offset + j);
+                var wj1 = bf16 ? widenBF16(w, (long) offset + j + width) : widenF16(w, (long) offset + j + width);
+                sum0 = wj0.fma(FloatVector.fromArray(species, x, j), sum0);
+                sum1 = wj1.fma(FloatVector.fromArray(species, x, j + width), sum1);
             }
-            val += sum[0] + sum[1] + sum[2] + sum[3];
+            val = sum0.add(sum1).reduceLanes(VectorOperators.ADD);
+        }
+        for (; j < n; j++) {
+            val += half(w, bf16, (long) offset + j) * x[j];
+        }
+        return val;
+    }
 
-            for (; j < n; j++) {
-                val += w.get(i * n + j) * x[j];
+    float dot(FloatBuffer w, MemorySegment wSegment, int offset, float[] x, int n) {
+        // dot product of the n weights starting at offset with x
+        float val = 0f;
+        int j = 0;
+        if (USE_VECTOR_API) {
+            VectorSpecies<Float> species = FloatVector.SPECIES_256;
+            FloatVector sum0 = FloatVector.zero(species);
+            FloatVector sum1 = FloatVector.zero(species);
+            FloatVector sum2 = FloatVector.zero(species);
+            FloatVector sum3 = FloatVector.zero(species);
+            int width = species.length();
+            int upperBound = n - n % (4 * width);
+            for (; j < upperBound; j += 4 * width) {
+                var wj0 = FloatVector.fromMemorySegment(species, wSegment, (offset + j + 0 * width) * (long) Float.BYTES,
+                        ByteOrder.LITTLE_ENDIAN);
+                var wj1 = FloatVector.fromMemorySegment(species, wSegment, (offset + j + 1 * width) * (long) Float.BYTES,
+                        ByteOrder.LITTLE_ENDIAN);
+                var wj2 = FloatVector.fromMemorySegment(species, wSegment, (offset + j + 2 * width) * (long) Float.BYTES,
+                        ByteOrder.LITTLE_ENDIAN);
+                var wj3 = FloatVector.fromMemorySegment(species, wSegment, (offset + j + 3 * width) * (long) Float.BYTES,
+                        ByteOrder.LITTLE_ENDIAN);
+                var xj0 = FloatVector.fromArray(species, x, j + 0 * width);
+                var xj1 = FloatVector.fromArray(species, x, j + 1 * width);
+                var xj2 = FloatVector.fromArray(species, x, j + 2 * width);
+                var xj3 = FloatVector.fromArray(species, x, j + 3 * width);
+                sum0 = wj0.fma(xj0, sum0);
+                sum1 = wj1.fma(xj1, sum1);
+                sum2 = wj2.fma(xj2, sum2);
+                sum3 = wj3.fma(xj3, sum3);
             }
-            xout[i] = val;
-        });
+            val = sum0.add(sum1).add(sum2).add(sum3).reduceLanes(VectorOperators.ADD);
+        }
+
+        // Graal's auto-vectorization.
+        int upperBound = n & ~3;
+        float sum0 = 0.0f, sum1 = 0.0f, sum2 = 0.0f, sum3 = 0.0f;
+        for (; j < upperBound; j += 4) {
+            sum0 += w.get(offset + j + 0) * x[j + 0];
+            sum1 += w.get(offset + j + 1) * x[j + 1];
+            sum2 += w.get(offset + j + 2) * x[j + 2];
+            sum3 += w.get(offset + j + 3) * x[j + 3];
+        }
+        val += sum0 + sum1 + sum2 + sum3;
+
+        for (; j < n; j++) {
+            val += w.get(offset + j) * x[j];
+        }
+        return val;
     }
 
-    public float[] forward(Transformer transformer, int token, int pos) {
+    void rope(Config p, float[] q, float[] k, int pos) {
+        // RoPE relative positional encoding: complex-valued rotate q and k in each head, by
+        // the angles of pos in the tables of the config
+        int kv_dim = (p.dim * p.n_kv_heads) / p.n_heads;
+        rotate(q, p.dim, p.rope_cos, p.rope_sin, pos * p.head_size, p.head_size);
+        rotate(k, kv_dim, p.rope_cos, p.rope_sin, pos * p.head_size, p.head_size);
+    }
+
+    // swaps the two elements of each pair of lanes
+    static final VectorShuffle<Float> PAIR_SWAP = VectorShuffle.fromOp(FloatVector.SPECIES_256, i -> i ^ 1);
+
+    void rotate(float[] vec, int size, float[] cos, float[] sin, int offset, int head_size) {
+        // rotate each pair of the size / head_size heads of vec by the angles at offset
+        for (int h = 0; h < size; h += head_size) {
+            int i = 0;
+            if (USE_VECTOR_API) {
+                VectorSpecies<Float> species = FloatVector.SPECIES_256;
+                for (; i + species.length() <= head_size; i += species.length()) {
+                    var v = FloatVector.fromArray(species, vec, h + i);
+                    var c = FloatVector.fromArray(species, cos, offset + i);
+                    var s = FloatVector.fromArray(species, sin, offset + i);
+                    v.mul(c).add(v.rearrange(PAIR_SWAP).mul(s)).intoArray(vec, h + i);
+                }
+            }
+            for (; i < head_size; i += 2) {
+                float v0 = vec[h + i];
+                float v1 = vec[h + i + 1];
+                float fcr = cos[offset + i];
+                float fci = sin[offset + i + 1];
+                vec[h + i] = v0 * fcr - v1 * fci;
+                vec[h + i + 1] = v0 * fci + v1 * fcr;
+            }
+        }
+    }
+
+    void attention(Config p, float[] q, float[] att, float[] xb, PagedKVCache kv_cache, int layer, int pos, int h) {
+        // attention of query head h over the paged kv cache of one layer, positions 0..pos
+        int head_size = p.head_size;
+        int kv_mul = p.n_heads / p.n_kv_heads; // integer multiplier of the kv sharing in multiquery
+        KVBlockPool pool = kv_cache.pool;
+        int kvHeadOffset = (h / kv_mul) * head_size;
+
+        // get the query vector for this head
+        // float* q = s.q + h * head_size;
+        int qOffset = h * head_size;
+
+        // attention scores for this head
+        // float* att = s.att + h * p.seq_len;
+        int attOffset = h * p.seq_len;
+
+        // iterate over all timesteps, including the current one
+        for (int t = 0; t <= pos; t++) {
+            // get the key vector for this head and at this timestep, from the block holding t
+            MemorySegment block = kv_cache.block(t);
+            long keyIndex = pool.keyIndex(layer, t % pool.block_size) + kvHeadOffset;
+            // calculate the attention score as the dot product of q and k
+            float score = 0.0f;
+            if (pool.int8) {
+                // int8 key, scaled once for the whole head
+                for (int i = 0; i < head_size; i++) {
+                    score += q[qOffset + i] * block.get(ValueLayout.JAVA_BYTE, keyIndex + i);
+                }
+                score *= block.getAtIndex(ValueLayout.JAVA_FLOAT,
+                        pool.keyScaleIndex(layer, t % pool.block_size) + h / kv_mul);
+            } else {
+                for (int i = 0; i < head_size; i++) {
+                    score += q[qOffset + i] * block.getAtIndex(ValueLayout.JAVA_FLOAT, keyIndex + i);
+                }
+            }
+            score /= (float) Math.sqrt(head_size);
+            // save the score to the attention buffer
+            att[attOffset + t] = score;
+        }
+
+        // softmax the scores to get attention weights, from 0..pos inclusively
+        softmax(att, attOffset, pos + 1);
+
+        // weighted sum of the values, store back into xb
+        // float* xb = s.xb + h * head_size;
+        int xbOffset = h * head_size;
+        // memset(xb, 0, head_size * sizeof(float));
+        Arrays.fill(xb, xbOffset, xbOffset + head_size, 0f);
+
+        for (int t = 0; t <= pos; t++) {
+            // get the value vector for this head and at this timestep
+            MemorySegment block = kv_cache.block(t);
+            long vIndex = pool.valueIndex(layer, t % pool.block_size) + kvHeadOffset;
+            // get the attention weight for this timestep
+            float a = att[attOffset + t];
+            if (pool.int8) {
+                // fold the scale of the int8 value into the weight
+                a *= block.getAtIndex(ValueLayout.JAVA_FLOAT,
+                        pool.valueScaleIndex(layer, t % pool.block_size) + h / kv_mul);
+                for (int i = 0; i < head_size; i++) {
+                    xb[xbOffset + i] += a * block.get(ValueLayout.JAVA_BYTE, vIndex + i);
+                }
+                continue;
+            }
+            // accumulate the weighted value inconfigto xb
+            for (int i = 0; i < head_size; i++) {
+                xb[xbOffset + i] += a * block.getAtIndex(ValueLayout.JAVA_FLOAT, vIndex + i);
+            }
+        }
+    }
+
+    static final class AttentionLanes {
+        // lanes of the attention kernel, the widest the cpu has, and the int8 lanes loaded
+        // with them. a holder class, so that only the Vector API path initializes them
+        static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+        // byte vectors are 64 bits at least: with 128-bit float lanes (neon, sse, baseline
+        // x86-64) one load of 8 int8 values is widened in two parts
+        static final VectorSpecies<Byte> BYTES = VectorSpecies.of(byte.class,
+                VectorShape.forBitSize(Math.max(64, FLOATS.length() * Byte.SIZE)));
+    }
+
+    void attentionGroup(Config p, float[] q, float[] att, float[] xb, PagedKVCache kv_cache, int layer, int pos,
+            int g) {
+        // Vector API attention of the kv_mul query heads sharing kv head g: each cached key
+        // and value row is read from memory once for the whole group, the other heads of
+        // the group then find it in L1
+        int head_size = p.head_size;
+        int kv_mul = p.n_heads / p.n_kv_heads;
+        KVBlockPool pool = kv_cache.pool;
+        VectorSpecies<Float> species = AttentionLanes.FLOATS;
+        // head elements per step: one vector of floats, or the float parts of one of int8
+        int step = pool.int8 ? AttentionLanes.BYTES.length() : species.length();
+        int upperBound = head_size - head_size % step;
+        int h0 = g * kv_mul; // first query head of the group
+        float sqrt = (float) Math.sqrt(head_size);
+
+        // attention scores of the heads of the group
+        for (int t = 0; t <= pos; t++) {
+            MemorySegment block = kv_cache.block(t);
+            int slot = t % pool.block_size;
+            long keyIndex = pool.keyIndex(layer, slot) + (long) g * head_size;
+            float scale = pool.int8
+                    ? block.getAtIndex(ValueLayout.JAVA_FLOAT, pool.keyScaleIndex(layer, slot) + g)
+                    : 1.0f;
+            for (int h = h0; h < h0 + kv_mul; h++) {
+                int qOffset = h * head_size;
+                FloatVector sum = FloatVector.zero(species);
+                int i = 0;
+                for (; i < upperBound; i += step) {
+                    for (int j = 0; j < step; j += species.length()) {
+                        sum = row(block, pool.int8, keyIndex + i, j)
+                                .fma(FloatVector.fromArray(species, q, qOffset + i + j), sum);
+                    }
+                }
+                float score = sum.reduceLanes(VectorOperators.ADD);
+                for (; i < head_size; i++) {
+                    score += q[qOffset + i] * (pool.int8
+                            ? block.get(ValueLayout.JAVA_BYTE, keyIndex + i)
+                            : block.getAtIndex(ValueLayout.JAVA_FLOAT, keyIndex + i));
+                }
+                att[h * p.seq_len + t] = score * scale / sqrt;
+            }
+        }
+
+        // softmax the scores of each head, from 0..pos inclusively
+        for (int h = h0; h < h0 + kv_mul; h++) {
+            softmax(att, h * p.seq_len, pos + 1);
+            Arrays.fill(xb, h * head_size, (h + 1) * head_size, 0f);
+        }
+
+        // weighted sums of the values, store back into xb
+        for (int t = 0; t <= pos; t++) {
+            MemorySegment block = kv_cache.block(t);
+            int slot = t % pool.block_size;
+            long vIndex = pool.valueIndex(layer, slot) + (long) g * head_size;
+            float scale = pool.int8
+                    ? block.getAtIndex(ValueLayout.JAVA_FLOAT, pool.valueScaleIndex(layer, slot) + g)
+                    : 1.0f;
+            int i = 0;
+            for (; i < upperBound; i += step) {
+                for (int j = 0; j < step; j += species.length()) {
+                    FloatVector v = row(block, pool.int8, vIndex + i, j);
+                    for (int h = h0; h < h0 + kv_mul; h++) {
+                        int xbOffset = h * head_size + i + j;
+                        v.mul(att[h * p.seq_len + t] * scale).add(FloatVector.fromArray(species, xb, xbOffset))
+                                .intoArray(xb, xbOffset);
+                    }
+                }
+            }
+            for (; i < head_size; i++) {
+                float v = pool.int8
+                        ? block.get(ValueLayout.JAVA_BYTE, vIndex + i)
+                        : block.getAtIndex(ValueLayout.JAVA_FLOAT, vIndex + i);
+                for (int h = h0; h < h0 + kv_mul; h++) {
+                    xb[h * head_size + i] += att[h * p.seq_len + t] * scale * v;
+                }
+            }
+        }
+    }
+
+    FloatVector row(MemorySegment block, boolean int8, long index, int j) {
+        // the vector at element j of a step of a cached key (or value) row starting at index,
+        // widened from int8 but not scaled. an int8 step is one byte vector, j picks its part
+        VectorSpecies<Float> species = AttentionLanes.FLOATS;
+        if (int8) {
+            return (FloatVector) ByteVector.fromMemorySegment(AttentionLanes.BYTES, block, index,
+                    ByteOrder.nativeOrder()).convertShape(VectorOperators.B2F, species, j / species.length());
+        }
+        return FloatVector.fromMemorySegment(species, block, (index + j) * Float.BYTES, ByteOrder.nativeOrder());
+    }
+
+    void swiglu(float[] hb, float[] hb2, int hidden_dim) {
+        // SwiGLU non-linearity
+        for (int i = 0; i < hidden_dim; i++) {
+            float val = hb[i];
+            // silu(x)=x*σ(x), where σ(x) is the logistic sigmoid
+            val *= (1.0f / (1.0f + Math.exp(-val)));
+            // elementwise multiply with w3(x)
+            hb[i] = val;
+        }
+
+        // elementwise multiply with w3(x)
+        for (int i = 0; i < hidden_dim; i++) {
+            hb[i] = hb[i] * hb2[i];
+        }
+    }
+
+    public float[] forward(Transformer transformer, RunState s, int token, int pos) {
         // a few convenience variables
         Config p = transformer.config;
         Weights w = transformer.weights;
-        RunState s = transformer.state;
         int dim = p.dim;
         int hidden_dim = p.hidden_dim;
-        int head_size = p.head_size;
         int kv_dim = (p.dim * p.n_kv_heads) / p.n_heads;
-        int kv_mul = p.n_heads / p.n_kv_heads; // integer multiplier of the kv sharing in multiquery
+        ForwardProfile profile = ForwardProfile.start(dim, pos, pos, 1);
 
         // copy the token embedding into x
-        w.token_embedding_table.get(token * dim, s.x, 0, dim);
+        profile.phase(Phase.EMBEDDING, -1);
+        embed(s.x, w.token_embedding_table, token, dim);
 
         // forward all the layers
         for (int l = 0; l < p.n_layers; l++) {
 
             // attention rmsnorm
+            profile.phase(Phase.RMSNORM, l);
             rmsnorm(s.xb, s.x, w.rms_att_weight[l], dim);
 
             // qkv matmuls for this position
-            matmul(s.q, s.xb, w.wq[l], dim, dim);
-            matmul(s.k, s.xb, w.wk[l], dim, kv_dim);
-            matmul(s.v, s.xb, w.wv[l], dim, kv_dim);
+            profile.phase(Phase.QKV, l);
+            if (USE_FUSED_PROJECTIONS) {
+                matmulQKV(s.q_row, s.k_row, s.v_row, s.xb_row,
+                        w.wq[l], w.wk[l], w.wv[l], dim, dim, kv_dim, 1, s.xq, s.xs);
+            } else {
+                matmul(s.q, s.xb, w.wq[l], dim, dim, s.xq[0], s.xs[0]);
+                matmul(s.k, s.xb, w.wk[l], dim, kv_dim, s.xq[0], s.xs[0]);
+                matmul(s.v, s.xb, w.wv[l], dim, kv_dim, s.xq[0], s.xs[0]);
+            }
 
             // RoPE relative positional encoding: complex-valued rotate q and k in each head
-            for (int i = 0; i < dim; i += 2) {
-                int head_dim = i % head_size;
-                float freq = (float) (1.0 / Math.pow(10000.0f, head_dim / (float) head_size));
-                float val = pos * freq;
-                float fcr = (float) Math.cos(val);
-                float fci = (float) Math.sin(val);
-                int rotn = i < kv_dim ? 2 : 1; // how many vectors? 2 = q & k, 1 = q only
-                for (int v = 0; v < rotn; v++) {
-                    float[] vec = v == 0 ? s.q : s.k; // the vector to rotate (query or key)
-                    float v0 = vec[i];
-                    float v1 = vec[i + 1];
-                    vec[i] = v0 * fcr - v1 * fci;
-                    vec[i + 1] = v0 * fci + v1 * fcr;
-                }
-            }
+            profile.phase(Phase.ROPE, l);
+            rope(p, s.q, s.k, pos);
 
             // save key,value at this time step (pos) to our kv cache
-            // int loff = l * p.seq_len * kv_dim; // kv cache layer offset for convenience
-            System.arraycopy(s.k, 0, s.key_cache[l], pos * kv_dim, kv_dim);
-            System.arraycopy(s.v, 0, s.value_cache[l], pos * kv_dim, kv_dim);
+            profile.phase(Phase.ATTENTION, l);
+            s.kv_cache.store(l, pos, s.k, s.v);
 
             final int curLayer = l;
 
             // multihead attention. iterate over all heads
-            IntStream.range(0, p.n_heads).parallel().forEach(h -> {
-                // get the query vector for this head
-                // float* q = s.q + h * head_size;
-                int qOffset = h * head_size;
-
-                // attention scores for this head
-                // float* att = s.att + h * p.seq_len;
-                int attOffset = h * p.seq_len;
-
-                // iterate over all timesteps, including the current one
-                for (int t = 0; t <= pos; t++) {
-                    // get the key vector for this head and at this timestep
-                    // float* k = s->key_cache + loff + t * kv_dim + (h / kv_mul) * head_size;
-                    int keyCacheOffset = t * kv_dim + (h / kv_mul) * head_size;
-                    // calculate the attention score as the dot product of q and k
-                    float score = 0.0f;
-                    for (int i = 0; i < head_size; i++) {
-                        score += s.q[qOffset + i] * s.key_cache[curLayer][keyCacheOffset + i];
-                    }
-                    score /= (float) Math.sqrt(head_size);
-                    // save the score to the attention buffer
-                    s.att[attOffset + t] = score;
-                }
-
-                // softmax the scores to get attention weights, from 0..pos inclusively
-                softmax(s.att, attOffset, pos + 1);
-
-                // weighted sum of the values, store back into xb
-                // float* xb = s.xb + h * head_size;
-                int xbOffset = h * head_size;
-                // memset(xb, 0, head_size * sizeof(float));
-                Arrays.fill(s.xb, xbOffset, xbOffset + head_size, 0f);
-
-                for (int t = 0; t <= pos; t++) {
-                    // get the value vector for this head and at this timestep
-                    // float* v = s->value_cache + loff + t * kv_dim + (h / kv_mul) * head_size;
-                    int vOffset = t * kv_dim + (h / kv_mul) * head_size;
-                    // get the attention weight for this timestep
-                    float a = s.att[attOffset + t];
-                    // accumulate the weighted value inconfigto xb
-                    for (int i = 0; i < head_size; i++) {
-                        s.xb[xbOffset + i] += a * s.value_cache[curLayer][vOffset + i];
-                    }
-                }
-            });
+            if (USE_VECTOR_API) {
+                // the query heads sharing a kv head go together
+                ComputePool.instance().parallelFor(p.n_kv_heads, g -> attentionGroup(p, s.q, s.att, s.xb,
+                        s.kv_cache, curLayer, pos, g));
+            } else {
+                ComputePool.instance().parallelFor(p.n_heads, h -> attention(p, s.q, s.att, s.xb, s.kv_cache,
+                        curLayer, pos, h));
+            }
 
             // final matmul to get the output of the attention
-            matmul(s.xb2, s.xb, w.wo[l], dim, dim);
+            profile.phase(Phase.WO, l);
+            matmul(s.xb2, s.xb, w.wo[l], dim, dim, s.xq[0], s.xs[0]);
 
             // residual connection back into x
+            profile.phase(Phase.RESIDUAL, l);
             for (int i = 0; i < dim; i++) {
                 s.x[i] += s.xb2[i];
             }
 
             // ffn rmsnorm
+            profile.phase(Phase.RMSNORM, l);
             rmsnorm(s.xb, s.x, w.rms_ffn_weight[l], dim);
 
             // Now for FFN in PyTorch we have: self.w2(F.silu(self.w1(x)) * self.w3(x))
-            // first calculate self.w1(x) and self.w3(x)
-            matmul(s.hb, s.xb, w.w1[l], dim, p.hidden_dim);
-            matmul(s.hb2, s.xb, w.w3[l], dim, p.hidden_dim);
-
-            // SwiGLU non-linearity
-            for (int i = 0; i < hidden_dim; i++) {
-                float val = s.hb[i];
-                // silu(x)=x*σ(x), where σ(x) is the logistic sigmoid
-                val *= (1.0f / (1.0f + Math.exp(-val)));
-                // elementwise multiply with w3(x)
-                s.hb[i] = val;
-            }
-
-            // elementwise multiply with w3(x)
-            for (int i = 0; i < hidden_dim; i++) {
-                s.hb[i] = s.hb[i] * s.hb2[i];
+            profile.phase(Phase.FFN, l);
+            if (USE_FUSED_PROJECTIONS) {
+                matmulSwiGLU(s.hb_row, s.xb_row, w.w1[l], w.w3[l], dim, hidden_dim, 1, s.xq, s.xs);
+            } else {
+                // first calculate self.w1(x) and self.w3(x)
+                matmul(s.hb, s.xb, w.w1[l], dim, p.hidden_dim, s.xq[0], s.xs[0]);
+                matmul(s.hb2, s.xb, w.w3[l], dim, p.hidden_dim, s.xq[0], s.xs[0]);
+
+                // SwiGLU non-linearity
+                swiglu(s.hb, s.hb2, hidden_dim);
             }
 
             // final matmul to get the output of the ffn
-            matmul(s.xb, s.hb, w.w2[l], p.hidden_dim, dim);
+            matmul(s.xb, s.hb, w.w2[l], p.hidden_dim, dim, s.xq[0], s.xs[0]);
 
             // residual connection
+            profile.phase(Phase.RESIDUAL, l);
             for (int i = 0; i < dim; i++) {
                 s.x[i] += s.xb[i];
             }
         }
 
         // final rmsnorm
+        profile.phase(Phase.RMSNORM, -1);
         rmsnorm(s.x, s.x, w.rms_final_weight, dim);
 
         // classifier into logits
-        matmul(s.logits, s.x, w.wcls, dim, p.vocab_size);
+        profile.phase(Phase.CLASSIFIER, -1);
+        matmul(s.logits, s.x, w.wcls, dim, p.vocab_size, s.xq[0], s.xs[0]);
+        profile.finish();
         return s.logits;
     }
+
+    public void forward(Transformer transformer, BatchState b, RunState[] states, int[] tokens, int[] positions,
+            int n) {
+        forward(transformer, b, states, tokens, positions, n, 0, null);
+    }
+
+    public float[] prefill(Transformer transformer, BatchState b, RunState s, int[] tokens, int n, int pos) {
+        // feed the n prompt tokens into the kv cache of s, starting at position pos, with
+        // matrix-matrix forward passes over chunks of up to b.max_batch tokens. all rows of
+        // a chunk write their keys/values before attending, so causal attention just means
+        // each row stops at its own position. only the last token's logits are computed
+        RunState[] states = new RunState[b.max_batch];
+        Arrays.fill(states, s);
+        int[] chunk = new int[b.max_batch];
+        int[] positions = new int[b.max_batch];
+        for (int start = 0; start < n; start += b.max_batch) {
+            int m = Math.min(b.max_batch, n - start);
+            System.arraycopy(tokens, start, chunk, 0, m);
+            for (int r = 0; r < m; r++) {
+                positions[r] = pos + start + r;
+            }
+            forward(transformer, b, states, chunk, positions, m, start + m == n ? m - 1 : m, null);
+        }
+        return s.logits;
+    }
+
+    public void verify(Transformer transformer, BatchState b, RunState s, int[] tokens, int n, int pos,
+            float[][] logits) {
+        // like prefill() for n <= b.max_batch tokens, but keeps the logits of every one of
+        // them: row r gets the distribution following tokens[0..r], into logits[r]. used
+        // to check n - 1 speculated tokens in a single pass over the weights
+        RunState[] states = new RunState[n];
+        Arrays.fill(states, s);
+        int[] positions = new int[n];
+        for (int r = 0; r < n; r++) {
+            positions[r] = pos + r;
+        }
+        forward(transformer, b, states, tokens, positions, n, 0, logits);
+    }
+
+    void forward(Transformer transformer, BatchState b, RunState[] states, int[] tokens, int[] positions, int n,
+            int logits_from, float[][] logits) {
+        // same as forward() above, but advances n rows by one token each in a single pass
+        // over the weights. row r feeds tokens[r] at positions[r] and uses the kv cache of
+        // states[r]; rows from logits_from on get their logits written to states[r].logits,
+        // or to logits[r - logits_from] when given
+        Config p = transformer.config;
+        Weights w = transformer.weights;
+        int dim = p.dim;
+        int hidden_dim = p.hidden_dim;
+        int kv_dim = (p.dim * p.n_kv_heads) / p.n_heads;
+        int last_position = positions[0];
+        for (int r = 1; r < n; r++) {
+            last_position = Math.max(last_position, positions[r]);
+        }
+        ForwardProfile profile = ForwardProfile.start(dim, positions[0], last_position, n);
+
+        // copy the token embeddings into x
+        profile.phase(Phase.EMBEDDING, -1);
+        for (int r = 0; r < n; r++) {
+            embed(b.x[r], w.token_embedding_table, tokens[r], dim);
+        }
+
+        // forward all the layers
+        for (int l = 0; l < p.n_layers; l++) {
+
+            // attention rmsnorm
+            profile.phase(Phase.RMSNORM, l);
+            for (int r = 0; r < n; r++) {
+                rmsnorm(b.xb[r], b.x[r], w.rms_att_weight[l], dim);
+            }
+
+            // qkv matmuls for all rows
+            profile.phase(Phase.QKV, l);
+            if (USE_FUSED_PROJECTIONS) {
+                matmulQKV(b.q, b.k, b.v, b.xb, w.wq[l], w.wk[l], w.wv[l], dim, dim, kv_dim, n, b.xq, b.xs);
+            } else {
+                matmul(b.q, b.xb, w.wq[l], dim, dim, n, b.xq, b.xs);
+                matmul(b.k, b.xb, w.wk[l], dim, kv_dim, n, b.xq, b.xs);
+                matmul(b.v, b.xb, w.wv[l], dim, kv_dim, n, b.xq, b.xs);
+            }
+
+            // RoPE and kv cache update, each row at its own position
+            profile.phase(Phase.ROPE, l);
+            for (int r = 0; r < n; r++) {
+                rope(p, b.q[r], b.k[r], positions[r]);
+            }
+            profile.phase(Phase.ATTENTION, l);
+            for (int r = 0; r < n; r++) {
+                states[r].kv_cache.store(l, positions[r], b.k[r], b.v[r]);
+            }
+
+            final int curLayer = l;
+
+            // multihead attention. iterate over all heads of all rows
+            if (USE_VECTOR_API) {
+                ComputePool.instance().parallelFor(n * p.n_kv_heads, rg -> {
+                    int r = rg / p.n_kv_heads;
+                    attentionGroup(p, b.q[r], b.att[r], b.xb[r], states[r].kv_cache, curLayer, positions[r],
+                            rg % p.n_kv_heads);
+                });
+            } else {
+                ComputePool.instance().parallelFor(n * p.n_heads, rh -> {
+                    int r = rh / p.n_heads;
+                    attention(p, b.q[r], b.att[r], b.xb[r], states[r].kv_cache, curLayer, positions[r],
+                            rh % p.n_heads);
+                });
+            }
+
+            // final matmul to get the output of the attention
+            profile.phase(Phase.WO, l);
+            matmul(b.xb2, b.xb, w.wo[l], dim, dim, n, b.xq, b.xs);
+
+            // residual connection back into x
+            profile.phase(Phase.RESIDUAL, l);
+            for (int r = 0; r < n; r++) {
+                for (int i = 0; i < dim; i++) {
+                    b.x[r][i] += b.xb2[r][i];
+                }
+            }
+
+            // ffn rmsnorm
+            profile.phase(Phase.RMSNORM, l);
+            for (int r = 0; r < n; r++) {
+                rmsnorm(b.xb[r], b.x[r], w.rms_ffn_weight[l], dim);
+            }
+
+            // self.w2(F.silu(self.w1(x)) * self.w3(x)) for all rows
+            profile.phase(Phase.FFN, l);
+            if (USE_FUSED_PROJECTIONS) {
+                matmulSwiGLU(b.hb, b.xb, w.w1[l], w.w3[l], dim, hidden_dim, n, b.xq, b.xs);
+            } else {
+                matmul(b.hb, b.xb, w.w1[l], dim, hidden_dim, n, b.xq, b.xs);
+                matmul(b.hb2, b.xb, w.w3[l], dim, hidden_dim, n, b.xq, b.xs);
+                for (int r = 0; r < n; r++) {
+                    swiglu(b.hb[r], b.hb2[r], hidden_dim);
+                }
+            }
+            matmul(b.xb, b.hb, w.w2[l], hidden_dim, dim, n, b.xq, b.xs);
+
+            // residual connection
+            profile.phase(Phase.RESIDUAL, l);
+            for (int r = 0; r < n; r++) {
+                for (int i = 0; i < dim; i++) {
+                    b.x[r][i] += b.xb[r][i];
+                }
+            }
+        }
+
+        // final rmsnorm, then classifier into the logits of the rows that need them
+        int m = n - logits_from;
+        if (m <= 0) {
+            profile.finish();
+            return;
+        }
+        profile.phase(Phase.RMSNORM, -1);
+        for (int r = logits_from; r < n; r++) {
+            rmsnorm(b.x[r], b.x[r], w.rms_final_weight, dim);
+            b.logits[r - logits_from] = logits != null ? logits[r - logits_from] : states[r].logits;
+        }
+        profile.phase(Phase.CLASSIFIER, -1);
+        float[][] x = logits_from == 0 ? b.x : Arrays.copyOfRange(b.x, logits_from, n);
+        matmul(b.logits, x, w.wcls, dim, p.vocab_size, m, b.xq, b.xs);
+        profile.finish();
+    }
 }
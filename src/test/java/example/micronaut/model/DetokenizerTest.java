@@ -0,0 +1,116 @@
+package example.micronaut.model;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import example.micronaut.tools.SyntheticCheckpoint;
+import example.micronaut.utils.TokenUtils;
+
+// multi-byte utf-8 characters split over raw byte tokens, on the synthetic tokenizer: its
+// vocab is ascii, every other character falls back to the byte tokens <0x00>..<0xFF>
+class DetokenizerTest {
+
+    @TempDir
+    static Path dir;
+
+    static Tokenizer tokenizer;
+
+    @BeforeAll
+    static void setup() throws IOException {
+        String path = dir.resolve("tokenizer.bin").toString();
+        SyntheticCheckpoint.writeTokenizer(path, 512, 1);
+        tokenizer = new Tokenizer(path, 512);
+    }
+
+    static int raw(int b) {
+        // the raw byte token of b, the first 3 vocab elements are <unk>, <s>, </s>
+        return 3 + b;
+    }
+
+    static int token(String piece) {
+        return tokenizer.sorted_vocab.get(piece);
+    }
+
+    static List<String> pieces(int... tokens) {
+        // what the detokenizer emits for each token of the stream, then the flush
+        Detokenizer detokenizer = new Detokenizer(tokenizer);
+        List<String> pieces = new ArrayList<>();
+        int prev = 0;
+        for (int token : tokens) {
+            pieces.add(detokenizer.next(prev, token));
+            prev = token;
+        }
+        pieces.add(detokenizer.flush());
+        return pieces;
+    }
+
+    @Test
+    void splitCharacters() {
+        // 2, 3 and 4 byte characters only come out with their last byte
+        Assertions.assertEquals(List.of("", "é", ""), pieces(raw(0xC3), raw(0xA9)));
+        Assertions.assertEquals(List.of("", "", "€", ""), pieces(raw(0xE2), raw(0x82), raw(0xAC)));
+        Assertions.assertEquals(List.of("", "", "", "😀", ""), pieces(raw(0xF0), raw(0x9F), raw(0x98), raw(0x80)));
+        // between whole tokens, which keep coming out as they are
+        Assertions.assertEquals(List.of("a", "", "", "€", "b", ""),
+                pieces(token("a"), raw(0xE2), raw(0x82), raw(0xAC), token("b")));
+        // back to back
+        Assertions.assertEquals(List.of("", "é", "", "é", ""), pieces(raw(0xC3), raw(0xA9), raw(0xC3), raw(0xA9)));
+    }
+
+    @Test
+    void invalidBytes() {
+        // a lone continuation byte is replaced right away, it cannot complete anything
+        Assertions.assertEquals(List.of("�", "a", ""), pieces(raw(0x80), token("a")));
+        // a character cut short by the next token is replaced, the token comes out
+        Assertions.assertEquals(List.of("", "�a", ""), pieces(raw(0xC3), token("a")));
+        // as soon as the next lead byte shows it cannot complete
+        Assertions.assertEquals(List.of("", "�", "é", ""), pieces(raw(0xE2), raw(0xC3), raw(0xA9)));
+    }
+
+    @Test
+    void streamEndingMidCharacter() {
+        // the held back bytes come out of flush(), replaced
+        Assertions.assertEquals(List.of("a", "", "", "�"), pieces(token("a"), raw(0xE2), raw(0x82)));
+        Assertions.assertEquals(List.of("", "�"), pieces(raw(0xF0)));
+        // nothing held back, nothing flushed
+        Assertions.assertEquals(List.of("a", ""), pieces(token("a")));
+    }
+
+    @Test
+    void leadingSpaceAfterBos() {
+        // sentencepiece strips the leading space of the token following BOS (=1)
+        Detokenizer detokenizer = new Detokenizer(tokenizer);
+        Assertions.assertEquals("a", detokenizer.next(1, token(" a")));
+        Assertions.assertEquals(" a", detokenizer.next(token("b"), token(" a")));
+    }
+
+    @Test
+    void roundTrip() {
+        // encode then stream back random text, byte fallback included
+        Random rng = new Random(5);
+        int[] alphabet = "abc xyz.,éß€中😀".codePoints().toArray();
+        for (int i = 0; i < 500; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int j = rng.nextInt(20); j > 0; j--) {
+                text.appendCodePoint(alphabet[rng.nextInt(alphabet.length)]);
+            }
+            int[] tokens = new int[text.length() * 4 + 3];
+            int n = TokenUtils.encode(tokenizer, text.toString(), true, false, tokens);
+            Detokenizer detokenizer = new Detokenizer(tokenizer);
+            StringBuilder out = new StringBuilder();
+            for (int t = 1; t < n; t++) {
+                out.append(detokenizer.next(tokens[t - 1], tokens[t]));
+            }
+            out.append(detokenizer.flush());
+            Assertions.assertEquals(text.toString(), out.toString());
+        }
+    }
+}
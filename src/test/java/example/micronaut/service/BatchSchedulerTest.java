@@ -0,0 +1,68 @@
+package example.micronaut.service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import example.micronaut.model.KVBlockPool;
+import example.micronaut.model.Session;
+import example.micronaut.model.Transformer;
+import example.micronaut.tools.SyntheticCheckpoint;
+
+// closing the scheduler must fail every step it will not run: sessions block on their
+// step and ignore interrupts, so a step left behind hangs its request for good
+class BatchSchedulerTest {
+
+    @TempDir
+    static Path dir;
+
+    static Transformer transformer;
+    static KVBlockPool pool;
+
+    @BeforeAll
+    static void setup() throws IOException {
+        String checkpoint = dir.resolve("synthetic.bin").toString();
+        SyntheticCheckpoint.writeCheckpoint(checkpoint, 64, 176, 2, 4, 2, 512, 128, true, 1);
+        transformer = new Transformer(checkpoint);
+        pool = new KVBlockPool(transformer.config, 16, 64);
+    }
+
+    @AfterAll
+    static void close() {
+        pool.close();
+    }
+
+    static CompletableFuture<Throwable> step(BatchScheduler scheduler, Session session) {
+        // the failure of a forward() on another thread, null when it returned logits
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                scheduler.forward(session.state, 1, 0);
+                return null;
+            } catch (IllegalStateException e) {
+                return e;
+            }
+        });
+    }
+
+    @Test
+    void closeFailsGatheredAndLateSteps() throws Exception {
+        Session session = new Session(0, transformer.config, pool, 8, 0.0f, 0.9f, 0, 1);
+        BatchScheduler scheduler = new BatchScheduler(transformer, 4, TimeUnit.SECONDS.toMicros(30));
+        scheduler.join();
+        scheduler.join(); // a second session that never submits, the iteration keeps gathering
+        CompletableFuture<Throwable> gathered = step(scheduler, session);
+        Thread.sleep(200);
+        scheduler.close();
+        Assertions.assertNotNull(gathered.get(5, TimeUnit.SECONDS), "a gathered step must fail on close");
+
+        CompletableFuture<Throwable> late = step(scheduler, session);
+        Assertions.assertNotNull(late.get(5, TimeUnit.SECONDS), "a step after close must fail");
+    }
+}
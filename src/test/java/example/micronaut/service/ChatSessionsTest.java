@@ -0,0 +1,86 @@
+package example.micronaut.service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import example.micronaut.model.KVBlockPool;
+import example.micronaut.model.Tokenizer;
+import example.micronaut.model.Transformer;
+import example.micronaut.tools.SyntheticCheckpoint;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+// chat turns of kept conversations on a synthetic checkpoint, with greedy sampling so that
+// the answers to the same prompt compare equal
+class ChatSessionsTest {
+
+    static final int BLOCK_SIZE = 4; // small blocks, so that the chat template fills several
+    static final int STEPS = 128;
+
+    @TempDir
+    static Path dir;
+
+    static Transformer transformer;
+    static Tokenizer tokenizer;
+    static KVBlockPool pool;
+    static SessionPool sessionPool;
+    static PrefixCache prefixCache;
+    static ChatSessions chatSessions;
+    static InferenceMetrics metrics;
+    static Llama2Service service;
+
+    @BeforeAll
+    static void setup() throws IOException {
+        String checkpoint = dir.resolve("synthetic.bin").toString();
+        String tokenizer_path = dir.resolve("tokenizer.bin").toString();
+        SyntheticCheckpoint.writeCheckpoint(checkpoint, 64, 176, 2, 4, 2, 512, STEPS, true, 1);
+        SyntheticCheckpoint.writeTokenizer(tokenizer_path, 512, 1);
+        transformer = new Transformer(checkpoint);
+        tokenizer = new Tokenizer(tokenizer_path, 512);
+        pool = new KVBlockPool(transformer.config, BLOCK_SIZE, 4 * KVBlockPool.blocksFor(STEPS, BLOCK_SIZE));
+        sessionPool = new SessionPool(transformer.config, pool, 2, 8, 0.0f, 0.9f, 0, 1);
+        prefixCache = new PrefixCache(pool, KVBlockPool.blocksFor(STEPS, BLOCK_SIZE));
+        chatSessions = new ChatSessions(pool, 2 * KVBlockPool.blocksFor(STEPS, BLOCK_SIZE));
+        metrics = new InferenceMetrics(new SimpleMeterRegistry());
+        service = new Llama2Service();
+    }
+
+    @AfterAll
+    static void close() {
+        service.close();
+        pool.close();
+    }
+
+    static String chat(String session_id, String prompt) {
+        return String.join("", service.chat(transformer, tokenizer, sessionPool, null, prefixCache, chatSessions,
+                metrics, session_id, prompt, "You are a helpful assistant.", STEPS, new Limits(8, null, 0))
+                .map(Object::toString).collectList().block(Duration.ofSeconds(30)));
+    }
+
+    @Test
+    void cancelledFirstTurn() throws InterruptedException {
+        // a first turn cancelled after its prefill leaves the conversation at position 0:
+        // the next turn must start from an empty kv cache, and the prefix cache must not
+        // pick up blocks that do not line up with their tokens
+        String prompt = "Once upon a time, there was a little girl.";
+        String expected = chat(null, prompt); // also fills the prefix cache
+
+        // cancel right after "Assistant: ", the prefill still runs before the turn notices
+        service.chat(transformer, tokenizer, sessionPool, null, prefixCache, chatSessions, metrics, "c1", prompt,
+                "You are a helpful assistant.", STEPS, new Limits(8, null, 0)).take(1).blockLast();
+        for (int i = 0; i < 100 && chatSessions.conversations() == 0; i++) {
+            Thread.sleep(10); // the conversation is parked after the cancellation
+        }
+        Assertions.assertEquals(1, chatSessions.conversations());
+        Assertions.assertEquals(0, chatSessions.parked_blocks(), "a conversation at position 0 holds no blocks");
+
+        Assertions.assertEquals(expected, chat("c1", prompt));
+        Assertions.assertEquals(expected, chat(null, prompt), "the prefix cache was poisoned");
+    }
+}
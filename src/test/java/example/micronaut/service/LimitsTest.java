@@ -0,0 +1,97 @@
+package example.micronaut.service;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+// what text of the generated pieces reaches the client, and when a request stops
+class LimitsTest {
+
+    static Limits stop(String... stop) {
+        return new Limits(0, List.of(stop), 0);
+    }
+
+    @Test
+    void withoutStopSequences() {
+        Limits limits = new Limits(0, null, 0);
+        Assertions.assertEquals("Once", limits.text("Once"));
+        Assertions.assertEquals(" upon", limits.text(" upon"));
+        Assertions.assertFalse(limits.stopped());
+        Assertions.assertEquals("", limits.flush());
+    }
+
+    @Test
+    void stopSequenceSpanningTokens() {
+        // the pieces that may still grow into "The end" are held back, then dropped with it
+        Limits limits = stop("The end");
+        Assertions.assertEquals("Happily. ", limits.text("Happily. "));
+        Assertions.assertEquals("", limits.text("Th"));
+        Assertions.assertEquals("", limits.text("e e"));
+        Assertions.assertFalse(limits.stopped());
+        Assertions.assertEquals("", limits.text("nd."));
+        Assertions.assertTrue(limits.stopped());
+        // nothing after the stop sequence, nothing held back
+        Assertions.assertEquals("", limits.text(" More"));
+        Assertions.assertEquals("", limits.flush());
+    }
+
+    @Test
+    void stopSequenceWithinPiece() {
+        // the output is cut right before it
+        Limits limits = stop("The end");
+        Assertions.assertEquals("Happily. ", limits.text("Happily. The end. More"));
+        Assertions.assertTrue(limits.stopped());
+    }
+
+    @Test
+    void partialMatchReleasedOnDivergence() {
+        Limits limits = stop("\n\n", "The end");
+        Assertions.assertEquals("a", limits.text("a\n"));
+        Assertions.assertEquals("\nb", limits.text("b"));
+        Assertions.assertEquals("", limits.text("The e"));
+        Assertions.assertEquals("The eagle", limits.text("agle"));
+        Assertions.assertFalse(limits.stopped());
+        // a held back tail that the stream ends on comes out of flush()
+        Assertions.assertEquals("", limits.text("\n"));
+        Assertions.assertEquals("\n", limits.flush());
+    }
+
+    @Test
+    void earliestStopSequenceWins() {
+        Limits limits = stop("end", "\n");
+        Assertions.assertEquals("a", limits.text("a\nthe end"));
+        Assertions.assertTrue(limits.stopped());
+    }
+
+    @Test
+    void emptyStopSequencesAreIgnored() {
+        Limits limits = stop("");
+        Assertions.assertTrue(limits.stop.isEmpty());
+        Assertions.assertEquals("a", limits.text("a"));
+        Assertions.assertFalse(limits.stopped());
+    }
+
+    @Test
+    void maxTokens() {
+        // the sequence ends max_tokens after the prompt, or at steps first
+        Assertions.assertEquals(7, new Limits(5, null, 0).steps(100, 3));
+        Assertions.assertEquals(6, new Limits(5, null, 0).steps(6, 3));
+        Assertions.assertEquals(100, new Limits(0, null, 0).steps(100, 3));
+        Assertions.assertEquals(0, new Limits(-1, null, 0).max_tokens);
+        Assertions.assertEquals(Integer.MAX_VALUE, new Limits(Integer.MAX_VALUE, null, 0).steps(Integer.MAX_VALUE, 3));
+    }
+
+    @Test
+    void deadline() throws InterruptedException {
+        Limits limits = new Limits(0, null, 200);
+        Assertions.assertFalse(limits.expired());
+        Thread.sleep(250);
+        Assertions.assertTrue(limits.expired());
+        Assertions.assertTrue(limits.elapsed_nanos() >= 250_000_000L);
+
+        Limits none = new Limits(0, null, 0);
+        Thread.sleep(10);
+        Assertions.assertFalse(none.expired(), "0 is no deadline");
+    }
+}
@@ -0,0 +1,214 @@
+package example.micronaut.service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import example.micronaut.model.KVBlockPool;
+import example.micronaut.model.Sampler;
+import example.micronaut.model.Session;
+import example.micronaut.model.Tokenizer;
+import example.micronaut.model.Transformer;
+import example.micronaut.tools.SyntheticCheckpoint;
+import example.micronaut.utils.SamplingUtils;
+import example.micronaut.utils.TokenUtils;
+import example.micronaut.utils.TransformerUtils;
+
+// speculative decoding must not change what the target model generates: greedy decoding
+// yields the same tokens as one forward pass per token, whatever the drafter guesses, and
+// sampling accepts guess x with probability min(1, p(x) / q(x)) and replaces a rejected
+// one by a sample of max(0, p - q), so that the tokens come out distributed as p
+class SpeculativeDecoderTest {
+
+    static final int STEPS = 96;
+    static final int K = 4; // tokens guessed per step
+    static final int BLOCK_SIZE = 16;
+
+    @TempDir
+    static Path dir;
+
+    static Transformer transformer;
+    static Transformer other; // a draft model that disagrees with the target
+    static Tokenizer tokenizer;
+    static KVBlockPool pool;
+    static KVBlockPool draft_pool; // kv caches of the target as a draft model
+    static KVBlockPool other_pool;
+
+    @BeforeAll
+    static void setup() throws IOException {
+        String checkpoint = dir.resolve("synthetic.bin").toString();
+        String other_checkpoint = dir.resolve("other.bin").toString();
+        String tokenizer_path = dir.resolve("tokenizer.bin").toString();
+        SyntheticCheckpoint.writeCheckpoint(checkpoint, 64, 176, 2, 4, 2, 512, 128, true, 1);
+        SyntheticCheckpoint.writeCheckpoint(other_checkpoint, 32, 96, 1, 2, 2, 512, 128, true, 2);
+        SyntheticCheckpoint.writeTokenizer(tokenizer_path, 512, 1);
+        transformer = new Transformer(checkpoint);
+        other = new Transformer(other_checkpoint);
+        tokenizer = new Tokenizer(tokenizer_path, 512);
+        int blocks = KVBlockPool.blocksFor(STEPS + K + 1, BLOCK_SIZE);
+        pool = new KVBlockPool(transformer.config, BLOCK_SIZE, blocks);
+        draft_pool = new KVBlockPool(transformer.config, BLOCK_SIZE, blocks);
+        other_pool = new KVBlockPool(other.config, BLOCK_SIZE, blocks);
+    }
+
+    @AfterAll
+    static void close() {
+        pool.close();
+        draft_pool.close();
+        other_pool.close();
+    }
+
+    static Session session() {
+        // greedy, with room for the verification of K guesses in one pass
+        return new Session(0, transformer.config, pool, K + 1, 0.0f, 0.9f, 0, 1);
+    }
+
+    static int[] prompt(String text) {
+        int[] tokens = new int[text.length() * 2 + 3];
+        int n = TokenUtils.encode(tokenizer, text, true, false, tokens);
+        return Arrays.copyOf(tokens, n);
+    }
+
+    static int[] plain(int[] prompt) {
+        // one forward pass per position, the prompt forced, as generate without speculation
+        Session session = session();
+        int[] tokens = Arrays.copyOf(prompt, STEPS + 1);
+        for (int pos = 0; pos < STEPS; pos++) {
+            float[] logits = TransformerUtils.forward(transformer, session.state, tokens[pos], pos);
+            if (pos + 1 >= prompt.length) {
+                tokens[pos + 1] = SamplingUtils.sample(session.sampler, logits);
+            }
+        }
+        session.state.kv_cache.clear();
+        return tokens;
+    }
+
+    static int[] speculative(int[] prompt, Drafter drafter) {
+        // prefill all but the last prompt token, then steps of the decoder, as generate does
+        SpeculativeDecoder decoder = new SpeculativeDecoder(transformer, drafter, K);
+        Session session = session();
+        int[] tokens = Arrays.copyOf(prompt, STEPS + 1);
+        int n = prompt.length;
+        TransformerUtils.prefill(transformer, session.prefill, session.state, tokens, n - 1, 0);
+        int[] out = new int[K + 1];
+        while (n - 1 < STEPS) {
+            int produced = decoder.step(session, tokens, n, STEPS - (n - 1), out);
+            Assertions.assertTrue(produced >= 1, "every step yields a token");
+            System.arraycopy(out, 0, tokens, n, produced);
+            n += produced;
+        }
+        session.state.kv_cache.clear();
+        if (session.speculation != null) {
+            session.speculation.reset();
+        }
+        return tokens;
+    }
+
+    @Test
+    void greedyMatchesPlainDecoding() {
+        int[] prompt = prompt("Once upon a time, there was a little girl.");
+        int[] expected = plain(prompt);
+        // guesses that are all accepted, mostly rejected, and from the sequence itself
+        Assertions.assertArrayEquals(expected, speculative(prompt, new DraftModel(transformer, draft_pool, K + 1)),
+                "draft model equal to the target");
+        Assertions.assertArrayEquals(expected, speculative(prompt, new DraftModel(other, other_pool, K + 1)),
+                "draft model disagreeing with the target");
+        Assertions.assertArrayEquals(expected, speculative(prompt, new PromptLookup(3)), "prompt lookup");
+    }
+
+    // ----------------------------------------------------------------------------
+    // acceptance on hand-built distributions
+
+    static final int DRAWS = 200_000;
+
+    static double[] verify(float[] p, float[] q, int certain, double[] accepted, double[] residual, long seed) {
+        // draws guesses from q (or the certain guess when q is null) and verifies each of
+        // them against p as step() does. returns the frequencies of the tokens that come
+        // out, counts acceptances per guess and the residual samples per token
+        Sampler sampler = new Sampler(p.length, 1.0f, 0.9f, seed);
+        Random rng = new Random(seed);
+        double[] out = new double[p.length];
+        for (int i = 0; i < DRAWS; i++) {
+            int guess = certain;
+            if (q != null) {
+                guess = SamplingUtils.sample_mult(q, q.length, rng.nextFloat());
+            }
+            if (SpeculativeDecoder.accepts(sampler, p, q, guess)) {
+                accepted[guess]++;
+                out[guess]++;
+            } else {
+                int token = SpeculativeDecoder.residual(sampler, p.clone(), q, guess);
+                residual[token]++;
+                out[token]++;
+            }
+        }
+        for (int i = 0; i < out.length; i++) {
+            out[i] /= DRAWS;
+        }
+        return out;
+    }
+
+    static void assertFrequencies(double[] expected, double[] actual, double tolerance, String what) {
+        for (int i = 0; i < expected.length; i++) {
+            Assertions.assertEquals(expected[i], actual[i], tolerance, what + " of token " + i);
+        }
+    }
+
+    @Test
+    void acceptanceAndResidualFrequencies() {
+        float[] p = {0.5f, 0.3f, 0.15f, 0.05f, 0.0f};
+        float[] q = {0.1f, 0.2f, 0.3f, 0.25f, 0.15f};
+        double[] accepted = new double[p.length];
+        double[] residual = new double[p.length];
+        double[] out = verify(p, q, -1, accepted, residual, 3);
+
+        // the tokens that come out follow p
+        double[] expected = new double[p.length];
+        for (int i = 0; i < p.length; i++) {
+            expected[i] = p[i];
+        }
+        assertFrequencies(expected, out, 0.01, "output frequency");
+
+        // guess x is accepted with probability min(1, p(x) / q(x))
+        for (int x = 0; x < p.length; x++) {
+            double guessed = q[x] * DRAWS;
+            Assertions.assertEquals(Math.min(1.0, p[x] / q[x]), accepted[x] / guessed, 0.02,
+                    "acceptance of guess " + x);
+        }
+
+        // the rejected ones are replaced by samples of max(0, p - q), normalized
+        double mass = 0.0;
+        for (int i = 0; i < p.length; i++) {
+            mass += Math.max(0.0, p[i] - q[i]);
+        }
+        double rejections = Arrays.stream(residual).sum();
+        for (int i = 0; i < p.length; i++) {
+            expected[i] = Math.max(0.0, p[i] - q[i]) / mass;
+            residual[i] /= rejections;
+        }
+        assertFrequencies(expected, residual, 0.01, "residual frequency");
+    }
+
+    @Test
+    void certainGuessFrequencies() {
+        // a guess made with certainty (prompt lookup) is accepted with probability p(guess),
+        // otherwise the token comes from p without it
+        float[] p = {0.2f, 0.5f, 0.3f};
+        double[] accepted = new double[p.length];
+        double[] residual = new double[p.length];
+        double[] out = verify(p, null, 1, accepted, residual, 4);
+
+        assertFrequencies(new double[]{0.2, 0.5, 0.3}, out, 0.01, "output frequency");
+        Assertions.assertEquals(0.5, accepted[1] / DRAWS, 0.01, "acceptance of the certain guess");
+        double rejections = Arrays.stream(residual).sum();
+        assertFrequencies(new double[]{0.4, 0.0, 0.6}, Arrays.stream(residual).map(r -> r / rejections).toArray(),
+                0.01, "residual frequency");
+    }
+}
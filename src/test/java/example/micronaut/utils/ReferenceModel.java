@@ -0,0 +1,154 @@
+package example.micronaut.utils;
+
+import example.micronaut.model.Config;
+import example.micronaut.model.Tensor;
+import example.micronaut.model.Transformer;
+import example.micronaut.model.Weights;
+
+// the forward pass of llama2.c's run.c as plainly as it gets, in double precision over the
+// dequantized weights of a Transformer and with a contiguous kv cache of its own: what every
+// kernel variant of TransformerUtils is checked against
+final class ReferenceModel {
+
+    final Config p;
+    final int kv_dim;
+    final float[] token_embedding_table;
+    final float[][] rms_att_weight, wq, wk, wv, wo, rms_ffn_weight, w1, w2, w3;
+    final float[] rms_final_weight;
+    final float[] wcls;
+    final double[][] key_cache; // (layer, seq_len * kv_dim)
+    final double[][] value_cache; // (layer, seq_len * kv_dim)
+
+    ReferenceModel(Transformer transformer) {
+        this.p = transformer.config;
+        Weights w = transformer.weights;
+        this.kv_dim = p.n_kv_heads * p.head_size;
+        this.token_embedding_table = values(w.token_embedding_table, p.vocab_size * p.dim);
+        this.rms_att_weight = values(w.rms_att_weight, p.dim);
+        this.wq = values(w.wq, p.dim * p.dim);
+        this.wk = values(w.wk, kv_dim * p.dim);
+        this.wv = values(w.wv, kv_dim * p.dim);
+        this.wo = values(w.wo, p.dim * p.dim);
+        this.rms_ffn_weight = values(w.rms_ffn_weight, p.dim);
+        this.w1 = values(w.w1, p.hidden_dim * p.dim);
+        this.w2 = values(w.w2, p.dim * p.hidden_dim);
+        this.w3 = values(w.w3, p.hidden_dim * p.dim);
+        this.rms_final_weight = values(w.rms_final_weight, p.dim);
+        this.wcls = values(w.wcls, p.vocab_size * p.dim);
+        this.key_cache = new double[p.n_layers][p.seq_len * kv_dim];
+        this.value_cache = new double[p.n_layers][p.seq_len * kv_dim];
+    }
+
+    static float[] values(Tensor tensor, int numel) {
+        float[] values = new float[numel];
+        tensor.copyTo(0, values, 0, numel);
+        return values;
+    }
+
+    static float[][] values(Tensor[] tensors, int numel) {
+        float[][] values = new float[tensors.length][];
+        for (int l = 0; l < tensors.length; l++) {
+            values[l] = values(tensors[l], numel);
+        }
+        return values;
+    }
+
+    static double[] matmul(float[] w, double[] x, int n, int d) {
+        // W (d,n) @ x (n,) -> xout (d,)
+        double[] xout = new double[d];
+        for (int i = 0; i < d; i++) {
+            double val = 0.0;
+            for (int j = 0; j < n; j++) {
+                val += w[i * n + j] * x[j];
+            }
+            xout[i] = val;
+        }
+        return xout;
+    }
+
+    static double[] rmsnorm(double[] x, float[] weight) {
+        double ss = 0.0;
+        for (double v : x) {
+            ss += v * v;
+        }
+        ss = 1.0 / Math.sqrt(ss / x.length + 1e-5);
+        double[] o = new double[x.length];
+        for (int j = 0; j < x.length; j++) {
+            o[j] = weight[j] * (ss * x[j]);
+        }
+        return o;
+    }
+
+    double[] forward(int token, int pos) {
+        int head_size = p.head_size;
+        double[] x = new double[p.dim];
+        for (int i = 0; i < p.dim; i++) {
+            x[i] = token_embedding_table[token * p.dim + i];
+        }
+        for (int l = 0; l < p.n_layers; l++) {
+            double[] xb = rmsnorm(x, rms_att_weight[l]);
+            double[] q = matmul(wq[l], xb, p.dim, p.dim);
+            double[] k = matmul(wk[l], xb, p.dim, kv_dim);
+            double[] v = matmul(wv[l], xb, p.dim, kv_dim);
+
+            // RoPE: rotate each pair of q and k by pos times the frequency of the pair
+            for (int i = 0; i < p.dim; i += 2) {
+                double freq = 1.0 / Math.pow(10000.0, (i % head_size) / (double) head_size);
+                double fcr = Math.cos(pos * freq);
+                double fci = Math.sin(pos * freq);
+                for (double[] vec : i < kv_dim ? new double[][]{q, k} : new double[][]{q}) {
+                    double v0 = vec[i];
+                    double v1 = vec[i + 1];
+                    vec[i] = v0 * fcr - v1 * fci;
+                    vec[i + 1] = v0 * fci + v1 * fcr;
+                }
+            }
+            System.arraycopy(k, 0, key_cache[l], pos * kv_dim, kv_dim);
+            System.arraycopy(v, 0, value_cache[l], pos * kv_dim, kv_dim);
+
+            // multihead attention, each kv head is shared by n_heads / n_kv_heads query heads
+            double[] out = new double[p.dim];
+            for (int h = 0; h < p.n_heads; h++) {
+                int kv_offset = (h / (p.n_heads / p.n_kv_heads)) * head_size;
+                double[] att = new double[pos + 1];
+                double max = Double.NEGATIVE_INFINITY;
+                for (int t = 0; t <= pos; t++) {
+                    double score = 0.0;
+                    for (int i = 0; i < head_size; i++) {
+                        score += q[h * head_size + i] * key_cache[l][t * kv_dim + kv_offset + i];
+                    }
+                    att[t] = score / Math.sqrt(head_size);
+                    max = Math.max(max, att[t]);
+                }
+                double sum = 0.0;
+                for (int t = 0; t <= pos; t++) {
+                    att[t] = Math.exp(att[t] - max);
+                    sum += att[t];
+                }
+                for (int t = 0; t <= pos; t++) {
+                    for (int i = 0; i < head_size; i++) {
+                        out[h * head_size + i] += att[t] / sum * value_cache[l][t * kv_dim + kv_offset + i];
+                    }
+                }
+            }
+            double[] xb2 = matmul(wo[l], out, p.dim, p.dim);
+            for (int i = 0; i < p.dim; i++) {
+                x[i] += xb2[i];
+            }
+
+            // ffn: w2(silu(w1(x)) * w3(x))
+            xb = rmsnorm(x, rms_ffn_weight[l]);
+            double[] hb = matmul(w1[l], xb, p.dim, p.hidden_dim);
+            double[] hb2 = matmul(w3[l], xb, p.dim, p.hidden_dim);
+            for (int i = 0; i < p.hidden_dim; i++) {
+                hb[i] = hb[i] / (1.0 + Math.exp(-hb[i])) * hb2[i];
+            }
+            xb = matmul(w2[l], hb, p.hidden_dim, p.dim);
+            for (int i = 0; i < p.dim; i++) {
+                x[i] += xb[i];
+            }
+        }
+        x = rmsnorm(x, rms_final_weight);
+        return matmul(wcls, x, p.dim, p.vocab_size);
+    }
+}
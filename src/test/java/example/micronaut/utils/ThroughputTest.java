@@ -0,0 +1,109 @@
+package example.micronaut.utils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import example.micronaut.model.KVBlockPool;
+import example.micronaut.model.Session;
+import example.micronaut.model.Transformer;
+import example.micronaut.tools.CheckpointConverter;
+import example.micronaut.tools.SyntheticCheckpoint;
+
+// tokens per second of prefill and greedy decoding on a synthetic checkpoint in the shape of
+// stories15M, per weight format. the numbers go to the properties file named by the system
+// property llama2.tokps.report (one per test task, see build.gradle). with llama2.tokps.baseline
+// naming the report of an earlier run on the same machine, falling more than
+// llama2.tokps.max_regression (default 20%) behind it fails the test
+class ThroughputTest {
+
+    static final String[] FORMATS = {"f32", "q8_0", "q4_0"};
+    static final int PROMPT_TOKENS = 32;
+    static final int DECODE_TOKENS = 32;
+    static final int RUNS = 5; // the best run counts, the first ones warm up the JIT
+    static final double MAX_REGRESSION = Double.parseDouble(System.getProperty("llama2.tokps.max_regression", "0.2"));
+
+    @TempDir
+    static Path dir;
+
+    @Test
+    void tokensPerSecond() throws IOException {
+        int[] shape = SyntheticCheckpoint.STORIES15M;
+        String f32 = dir.resolve("synthetic.bin").toString();
+        SyntheticCheckpoint.writeCheckpoint(f32, shape[0], shape[1], shape[2], shape[3], shape[4], shape[5],
+                shape[6], true, 1);
+        Properties report = new Properties();
+        for (String format : FORMATS) {
+            String checkpoint = f32;
+            if (!format.equals("f32")) {
+                checkpoint = dir.resolve("synthetic_" + format + ".bin").toString();
+                CheckpointConverter.main(new String[]{f32, checkpoint, format, "32"});
+            }
+            double[] tokps = measure(new Transformer(checkpoint));
+            report.setProperty(format + ".prefill", "%.1f".formatted(tokps[0]));
+            report.setProperty(format + ".decode", "%.1f".formatted(tokps[1]));
+        }
+        System.out.println("tok/s: " + report);
+
+        String report_path = System.getProperty("llama2.tokps.report");
+        if (report_path != null) {
+            Files.createDirectories(Paths.get(report_path).toAbsolutePath().getParent());
+            try (Writer out = Files.newBufferedWriter(Paths.get(report_path))) {
+                report.store(out, "tok/s on a synthetic stories15M, VectorAPI=" + TransformerUtils.USE_VECTOR_API
+                        + " FusedProjections=" + TransformerUtils.USE_FUSED_PROJECTIONS);
+            }
+        }
+        String baseline_path = System.getProperty("llama2.tokps.baseline");
+        if (baseline_path != null && Files.exists(Paths.get(baseline_path))) {
+            Properties baseline = new Properties();
+            try (Reader in = Files.newBufferedReader(Paths.get(baseline_path))) {
+                baseline.load(in);
+            }
+            for (String key : baseline.stringPropertyNames()) {
+                double before = Double.parseDouble(baseline.getProperty(key));
+                double now = Double.parseDouble(report.getProperty(key, "0"));
+                Assertions.assertTrue(now >= (1.0 - MAX_REGRESSION) * before,
+                        key + " dropped from " + before + " to " + now + " tok/s");
+            }
+        }
+    }
+
+    static double[] measure(Transformer transformer) {
+        // tok/s of a prefill of PROMPT_TOKENS, then of decoding DECODE_TOKENS after it
+        int vocab_size = transformer.config.vocab_size;
+        KVBlockPool pool = new KVBlockPool(transformer.config, 16,
+                KVBlockPool.blocksFor(PROMPT_TOKENS + DECODE_TOKENS, 16));
+        Session session = new Session(0, transformer.config, pool, PROMPT_TOKENS, 0.0f, 0.9f, 0, 1);
+        int[] prompt = new int[PROMPT_TOKENS];
+        Random rng = new Random(1);
+        for (int i = 0; i < PROMPT_TOKENS; i++) {
+            prompt[i] = rng.nextInt(vocab_size);
+        }
+        double[] best = new double[2];
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            float[] logits = TransformerUtils.prefill(transformer, session.prefill, session.state, prompt,
+                    PROMPT_TOKENS, 0);
+            long prefilled = System.nanoTime();
+            for (int pos = PROMPT_TOKENS; pos < PROMPT_TOKENS + DECODE_TOKENS; pos++) {
+                int token = SamplingUtils.sample(session.sampler, logits);
+                logits = TransformerUtils.forward(transformer, session.state, token, pos);
+            }
+            long end = System.nanoTime();
+            best[0] = Math.max(best[0], PROMPT_TOKENS * 1e9 / (prefilled - start));
+            best[1] = Math.max(best[1], DECODE_TOKENS * 1e9 / (end - prefilled));
+            session.state.kv_cache.clear();
+        }
+        pool.close();
+        return best;
+    }
+}
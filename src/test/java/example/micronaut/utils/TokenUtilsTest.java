@@ -0,0 +1,147 @@
+package example.micronaut.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import example.micronaut.model.Tokenizer;
+import example.micronaut.tools.SyntheticCheckpoint;
+
+// the merge heap of TokenUtils.encode against the scan that rescans every pair after each
+// merge, as llama2.c does, on the synthetic tokenizer and on a copy of it with tied scores
+class TokenUtilsTest {
+
+    static final int VOCAB_SIZE = 2048;
+    static final int STRINGS = 3000;
+
+    @TempDir
+    static Path dir;
+
+    static Tokenizer tokenizer;
+    static Tokenizer tied; // the same vocab, merges share scores in runs of 8
+
+    @BeforeAll
+    static void setup() throws IOException {
+        Path path = dir.resolve("tokenizer.bin");
+        SyntheticCheckpoint.writeTokenizer(path.toString(), VOCAB_SIZE, 1);
+        tokenizer = new Tokenizer(path.toString(), VOCAB_SIZE);
+
+        // rewrite the scores in place, the layout is max_token_length then (score, len, bytes)
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.getInt();
+        for (int i = 0; i < VOCAB_SIZE; i++) {
+            int at = buffer.position();
+            buffer.putFloat(at, (float) Math.floor(buffer.getFloat(at) / 8));
+            int len = buffer.getInt(at + Float.BYTES);
+            buffer.position(at + Float.BYTES + Integer.BYTES + len);
+        }
+        Path tied_path = dir.resolve("tied.bin");
+        Files.write(tied_path, buffer.array());
+        tied = new Tokenizer(tied_path.toString(), VOCAB_SIZE);
+    }
+
+    static int scan_encode(Tokenizer t, String text, boolean bos, boolean eos, int[] tokens) {
+        // the encoder before the merge heap: codepoints with byte fallback, then merge the
+        // best scoring pair (the leftmost on a tie) until no pair is in vocab
+        int n_tokens = 0;
+        if (bos) {
+            tokens[n_tokens++] = 1;
+        }
+        if (!text.isEmpty()) {
+            tokens[n_tokens++] = t.sorted_vocab.getOrDefault(" ", -1);
+        }
+        for (int i = 0, cpi; i < text.length(); i += Character.charCount(cpi)) {
+            cpi = text.codePointAt(i);
+            String singleCodepoint = Character.toString(cpi);
+            int id = t.sorted_vocab.getOrDefault(singleCodepoint, -1);
+            if (id != -1) {
+                tokens[n_tokens++] = id;
+            } else {
+                for (byte b : singleCodepoint.getBytes(StandardCharsets.UTF_8)) {
+                    tokens[n_tokens++] = Byte.toUnsignedInt(b) + 3;
+                }
+            }
+        }
+        while (true) {
+            float best_score = -1e10f;
+            int best_id = -1;
+            int best_idx = -1;
+            for (int i = 0; i < n_tokens - 1; ++i) {
+                int id = t.sorted_vocab.getOrDefault(t.vocab[tokens[i]] + t.vocab[tokens[i + 1]], -1);
+                if (id != -1 && t.vocab_scores[id] > best_score) {
+                    best_score = t.vocab_scores[id];
+                    best_id = id;
+                    best_idx = i;
+                }
+            }
+            if (best_idx == -1) {
+                break;
+            }
+            tokens[best_idx] = best_id;
+            for (int i = best_idx + 1; i < n_tokens - 1; i++) {
+                tokens[i] = tokens[i + 1];
+            }
+            n_tokens--;
+        }
+        if (eos) {
+            tokens[n_tokens++] = 2;
+        }
+        return n_tokens;
+    }
+
+    static String randomText(Random rng, Tokenizer t) {
+        // pieces of the vocab, so that long merges happen, mixed with ascii, multi-byte
+        // characters with and without a token of their own and lone surrogates
+        StringBuilder text = new StringBuilder();
+        int parts = rng.nextInt(12);
+        for (int i = 0; i < parts; i++) {
+            switch (rng.nextInt(6)) {
+                case 0, 1 -> text.append(t.vocab[259 + rng.nextInt(t.vocab_size - 259)]);
+                case 2 -> text.append((char) (' ' + rng.nextInt(95)));
+                case 3 -> text.append("éß中€日本".charAt(rng.nextInt(6)));
+                case 4 -> text.appendCodePoint(0x1F600 + rng.nextInt(64)); // a surrogate pair
+                default -> text.append((char) (rng.nextBoolean() ? 0xD800 : 0xDC00 + rng.nextInt(16)));
+            }
+        }
+        return text.toString();
+    }
+
+    static void assertSameTokens(Tokenizer t, String text) {
+        int[] expected = new int[text.length() * 4 + 3];
+        int[] actual = new int[text.length() * 4 + 3];
+        int n_expected = scan_encode(t, text, true, true, expected);
+        int n_actual = TokenUtils.encode(t, text, true, true, actual);
+        Assertions.assertArrayEquals(Arrays.copyOf(expected, n_expected), Arrays.copyOf(actual, n_actual),
+                () -> "encoding \"" + text + "\"");
+    }
+
+    @Test
+    void mergeHeapMatchesScan() {
+        Random rng = new Random(13);
+        assertSameTokens(tokenizer, "");
+        assertSameTokens(tokenizer, "Once upon a time, there was a little girl.");
+        for (int i = 0; i < STRINGS; i++) {
+            assertSameTokens(tokenizer, randomText(rng, tokenizer));
+        }
+    }
+
+    @Test
+    void mergeHeapMatchesScanOnTiedScores() {
+        // equal scores go to the leftmost pair, stale heap entries must not win a tie
+        Random rng = new Random(17);
+        assertSameTokens(tied, "Once upon a time, there was a little girl.");
+        for (int i = 0; i < STRINGS; i++) {
+            assertSameTokens(tied, randomText(rng, tied));
+        }
+    }
+}
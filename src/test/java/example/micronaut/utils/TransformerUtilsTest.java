@@ -0,0 +1,256 @@
+package example.micronaut.utils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.TestFactory;
+import org.junit.jupiter.api.io.TempDir;
+
+import example.micronaut.model.BatchState;
+import example.micronaut.model.Config;
+import example.micronaut.model.KVBlockPool;
+import example.micronaut.model.Q8Tensor;
+import example.micronaut.model.RunState;
+import example.micronaut.model.Session;
+import example.micronaut.model.Tensor;
+import example.micronaut.model.Transformer;
+import example.micronaut.tools.CheckpointConverter;
+import example.micronaut.tools.SyntheticCheckpoint;
+
+// every matmul and forward variant of TransformerUtils, in every weight format, against the
+// double precision ReferenceModel on synthetic checkpoints. the kernels selected by
+// llama2.VectorAPI and llama2.FusedProjections are fixed per JVM, the testVectorAPI,
+// testUnfused and testVectorAPIUnfused tasks run this again with the others
+class TransformerUtilsTest {
+
+    // grouped query attention with a classifier of its own, and multi-head attention with a
+    // shared classifier in sizes that are no multiple of a vector length
+    static final int[][] SHAPES = {{64, 176, 2, 8, 2, 512, 64}, {72, 200, 2, 4, 4, 300, 40}};
+    static final boolean[] SHARED = {false, true};
+    static final String[] FORMATS = {"f32", "f16", "bf16", "q8_0", "q4_0"};
+    static final int BLOCK_SIZE = 8; // kv cache positions per block, the test sequences span several
+    static final int STEPS = 24; // length of the test sequences
+
+    @TempDir
+    static Path dir;
+
+    static final Map<String, Transformer> transformers = new HashMap<>();
+    static final List<KVBlockPool> pools = new ArrayList<>();
+
+    static synchronized Transformer transformer(int shape, String format) throws IOException {
+        String name = "shape" + shape + "_" + format + ".bin";
+        Transformer transformer = transformers.get(name);
+        if (transformer != null) {
+            return transformer;
+        }
+        Path f32 = dir.resolve("shape" + shape + "_f32.bin");
+        if (!Files.exists(f32)) {
+            int[] s = SHAPES[shape];
+            SyntheticCheckpoint.writeCheckpoint(f32.toString(), s[0], s[1], s[2], s[3], s[4], s[5], s[6],
+                    SHARED[shape], 1);
+        }
+        if (!format.equals("f32")) {
+            CheckpointConverter.main(new String[]{f32.toString(), dir.resolve(name).toString(), format, "32"});
+        }
+        transformer = new Transformer(dir.resolve(name).toString());
+        transformers.put(name, transformer);
+        return transformer;
+    }
+
+    static KVBlockPool pool(Config config, boolean int8) {
+        KVBlockPool pool = new KVBlockPool(config, BLOCK_SIZE, 4 * KVBlockPool.blocksFor(config.seq_len, BLOCK_SIZE),
+                int8);
+        pools.add(pool);
+        return pool;
+    }
+
+    @AfterAll
+    static void close() {
+        pools.forEach(KVBlockPool::close);
+    }
+
+    // errors allowed relative to the largest output. float kernels only differ from the
+    // reference in the order of float32 additions (~1e-6 is typical); the q8_0 kernels
+    // quantize x to int8 too (~0.5% per matmul, ~2.5% on the logits after a few layers), as
+    // does the int8 kv cache with the keys and values (another ~1.5%)
+    static double matmulTolerance(Tensor w) {
+        return w instanceof Q8Tensor ? 2e-2 : 1e-5;
+    }
+
+    static double logitsTolerance(String format, boolean int8_kv_cache) {
+        // q4_0 checkpoints keep the embeddings and the classifier in q8_0
+        return (format.startsWith("q") ? 6e-2 : 1e-5) + (int8_kv_cache ? 4e-2 : 0.0);
+    }
+
+    static double error(float[] actual, double[] expected) {
+        double error = 0.0;
+        for (int i = 0; i < expected.length; i++) {
+            error = Math.max(error, Math.abs(actual[i] - expected[i]));
+        }
+        return error;
+    }
+
+    static double max(double[] values) {
+        double max = 0.0;
+        for (double v : values) {
+            max = Math.max(max, Math.abs(v));
+        }
+        return max;
+    }
+
+    static void check(String what, float[] actual, double[] expected, double tolerance) {
+        double error = error(actual, expected) / max(expected);
+        Assertions.assertTrue(error <= tolerance, what + ": max relative error " + error + " > " + tolerance);
+    }
+
+    static Stream<DynamicTest> variants(String name, Variant variant) {
+        List<DynamicTest> tests = new ArrayList<>();
+        for (int shape = 0; shape < SHAPES.length; shape++) {
+            for (String format : FORMATS) {
+                int s = shape;
+                tests.add(DynamicTest.dynamicTest(name + " shape" + shape + " " + format,
+                        () -> variant.run(transformer(s, format), format)));
+            }
+        }
+        return tests.stream();
+    }
+
+    interface Variant {
+        void run(Transformer transformer, String format) throws Exception;
+    }
+
+    @TestFactory
+    Stream<DynamicTest> matmul() {
+        // single and batched matmuls of every kind of matrix against the dequantized weights
+        return variants("matmul", (transformer, format) -> {
+            Config p = transformer.config;
+            int kv_dim = p.n_kv_heads * p.head_size;
+            Tensor[] matrices = {transformer.weights.wq[0], transformer.weights.wk[0], transformer.weights.w1[0],
+                    transformer.weights.w2[0], transformer.weights.wcls};
+            int[][] sizes = {{p.dim, p.dim}, {p.dim, kv_dim}, {p.dim, p.hidden_dim}, {p.hidden_dim, p.dim},
+                    {p.dim, p.vocab_size}};
+            Random rng = new Random(2);
+            for (int m = 0; m < matrices.length; m++) {
+                int n = sizes[m][0];
+                int d = sizes[m][1];
+                float[] w = ReferenceModel.values(matrices[m], n * d);
+                int batch = 3;
+                float[][] x = new float[batch][n];
+                double[][] expected = new double[batch][];
+                for (int b = 0; b < batch; b++) {
+                    double[] xd = new double[n];
+                    for (int j = 0; j < n; j++) {
+                        x[b][j] = (float) rng.nextGaussian();
+                        xd[j] = x[b][j];
+                    }
+                    expected[b] = ReferenceModel.matmul(w, xd, n, d);
+                }
+                float[] xout = new float[d];
+                TransformerUtils.matmul(xout, x[0], matrices[m], n, d);
+                check("matmul " + n + "x" + d, xout, expected[0], matmulTolerance(matrices[m]));
+                float[][] xouts = new float[batch][d];
+                TransformerUtils.matmul(xouts, x, matrices[m], n, d, batch);
+                for (int b = 0; b < batch; b++) {
+                    check("batched matmul " + n + "x" + d + " row " + b, xouts[b], expected[b],
+                            matmulTolerance(matrices[m]));
+                }
+            }
+        });
+    }
+
+    static int[] tokens(Config p) {
+        Random rng = new Random(3);
+        int[] tokens = new int[STEPS];
+        for (int i = 0; i < STEPS; i++) {
+            tokens[i] = rng.nextInt(p.vocab_size);
+        }
+        return tokens;
+    }
+
+    static double[][] reference(Transformer transformer, int[] tokens) {
+        ReferenceModel reference = new ReferenceModel(transformer);
+        double[][] logits = new double[tokens.length][];
+        for (int pos = 0; pos < tokens.length; pos++) {
+            logits[pos] = reference.forward(tokens[pos], pos);
+        }
+        return logits;
+    }
+
+    @TestFactory
+    Stream<DynamicTest> forward() {
+        // token by token decoding, with a float32 and an int8 kv cache
+        return variants("forward", (transformer, format) -> {
+            Config p = transformer.config;
+            int[] tokens = tokens(p);
+            double[][] expected = reference(transformer, tokens);
+            for (boolean int8 : new boolean[]{false, true}) {
+                RunState s = new Session(0, p, pool(p, int8), 8, 0.0f, 0.9f, 0, 1).state;
+                for (int pos = 0; pos < tokens.length; pos++) {
+                    float[] logits = TransformerUtils.forward(transformer, s, tokens[pos], pos);
+                    check("forward " + (int8 ? "int8 kv " : "") + "pos " + pos, logits, expected[pos],
+                            logitsTolerance(format, int8));
+                }
+                s.kv_cache.clear();
+            }
+        });
+    }
+
+    @TestFactory
+    Stream<DynamicTest> prefill() {
+        // the batched forward pass: chunked prefill, verification of several tokens and
+        // decode steps of sessions at different positions in one pass
+        return variants("prefill", (transformer, format) -> {
+            Config p = transformer.config;
+            int[] tokens = tokens(p);
+            double[][] expected = reference(transformer, tokens);
+            double tolerance = logitsTolerance(format, false);
+            KVBlockPool pool = pool(p, false);
+
+            // chunks of 5 tokens, only the logits of the last one are computed
+            Session session = new Session(0, p, pool, 5, 0.0f, 0.9f, 0, 1);
+            float[] logits = TransformerUtils.prefill(transformer, session.prefill, session.state, tokens, STEPS, 0);
+            check("prefill", logits, expected[STEPS - 1], tolerance);
+            session.state.kv_cache.clear();
+
+            // the last 6 tokens verified in one pass, as speculative decoding does
+            int n = 6;
+            session = new Session(0, p, pool, n, 0.0f, 0.9f, 0, 1);
+            TransformerUtils.prefill(transformer, session.prefill, session.state, tokens, STEPS - n, 0);
+            float[][] rows = new float[n][p.vocab_size];
+            int[] verified = new int[n];
+            System.arraycopy(tokens, STEPS - n, verified, 0, n);
+            TransformerUtils.verify(transformer, session.prefill, session.state, verified, n, STEPS - n, rows);
+            for (int r = 0; r < n; r++) {
+                check("verify row " + r, rows[r], expected[STEPS - n + r], tolerance);
+            }
+            session.state.kv_cache.clear();
+
+            // one decode step of three sessions, as the batch scheduler runs them
+            int[] positions = {3, 10, STEPS - 1};
+            RunState[] states = new RunState[positions.length];
+            int[] next = new int[positions.length];
+            for (int r = 0; r < positions.length; r++) {
+                Session row = new Session(r, p, pool, 8, 0.0f, 0.9f, 0, 1);
+                TransformerUtils.prefill(transformer, row.prefill, row.state, tokens, positions[r], 0);
+                states[r] = row.state;
+                next[r] = tokens[positions[r]];
+            }
+            TransformerUtils.forward(transformer, new BatchState(p, positions.length), states, next, positions,
+                    positions.length);
+            for (int r = 0; r < positions.length; r++) {
+                check("batched decode pos " + positions[r], states[r].logits, expected[positions[r]], tolerance);
+                states[r].kv_cache.clear();
+            }
+        });
+    }
+}